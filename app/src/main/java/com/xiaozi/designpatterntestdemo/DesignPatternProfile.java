@@ -147,6 +147,9 @@ public class DesignPatternProfile {
         SingletonPattern.testSingleton();
         System.out.println("------单例模式范例扩展------");
         SingletonPattern.testMultiton();
+        SingletonPattern.testSingletonRegistry();
+        SingletonPattern.testMinisterPool();
+        SingletonPattern.testWarmUp();
         System.out.println("------原型模式范例------");
         PrototypePattern.testPrototypePattern();
         System.out.println("------原型模式范例扩展------");
@@ -161,6 +164,11 @@ public class DesignPatternProfile {
         BuilderPattern.testBuildPattern();
         System.out.println("------代理模式范例------");
         ProxyPattern.testProxyPattern();
+        System.out.println("------代理模式范例扩展------");
+        ProxyPattern.testLazyProxy();
+        ProxyPattern.testCachingProxy();
+        ProxyPattern.testInterceptorProxy();
+        ProxyPattern.testProtectionProxy();
         System.out.println("------适配器模式范例------");
         AdapterPattern.testAdapterPattern();
         System.out.println("------适配器模式范例扩展------");
@@ -173,6 +181,12 @@ public class DesignPatternProfile {
         FacadePattern.testFacadePattern();
         System.out.println("------享元模式范例------");
         FlyweightPattern.testFlyweightPattern();
+        System.out.println("------享元模式范例扩展------");
+        FlyweightPattern.testWeiqiBoard();
+        FlyweightPattern.testFlyweightFactory();
+        FlyweightPattern.testGameRecordArchive();
+        FlyweightPattern.testPositionCache();
+        FlyweightPattern.testBatchScorer();
         System.out.println("------组合模式-范例------");
         CompositePattern.testCompositePattern();
         System.out.println("------模板方法模式范例------");
@@ -193,9 +207,16 @@ public class DesignPatternProfile {
         StatePattern.testShareStatePattern();
         System.out.println("------观察者模式范例------");
         ObserverPattern.testObserverPattern();
+        ObserverPattern.testAsyncBell();
         ObserverPattern.testRateObserver();
+        ObserverPattern.testConflatingRate();
+        ObserverPattern.testParallelRate();
+        ObserverPattern.testRatePublisher();
+        ObserverPattern.testIndexedRate();
+        ObserverPattern.testDispatchMetrics();
         System.out.println("------观察者模式范例扩展------");
         ObserverPattern.testJavaObservable();
+        ObserverPattern.testOilPriceFeed();
         System.out.println("------中介者模式范例------");
         MediatorPattern.testMediatorPattern();
         System.out.println("-------中介者模式范例扩展------");
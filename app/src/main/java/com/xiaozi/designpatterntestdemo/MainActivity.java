@@ -3,11 +3,14 @@ package com.xiaozi.designpatterntestdemo;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 
+import com.xiaozi.designpatterntestdemo.pattern.SingletonPattern;
+
 public class MainActivity extends AppCompatActivity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        SingletonPattern.warmUpSingletons();
         setContentView(R.layout.activity_main);
 
         DesignPatternProfile designPatternProfile = new DesignPatternProfile();
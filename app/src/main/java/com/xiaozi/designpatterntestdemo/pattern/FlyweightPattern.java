@@ -1,6 +1,29 @@
 package com.xiaozi.designpatterntestdemo.pattern;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author : Sun
@@ -47,6 +70,25 @@ import java.util.ArrayList;
  * 类是抽象享元角色，它包含了一个落子的 downPieces()方法；白子（WhitePieces）和黑子（BlackPieces）类是具体
  * 享元角色，它实现了落子方法；Point 是非享元角色，它指定了落子的位置；WeiqiFactory 是享元工厂角色，它通过
  * ArrayList来管理棋子，并且提供了获取白子或者黑子的 getChessPieces(String type) 方法；
+ * 【例2】19路围棋棋盘。
+ * 分析：例1中落子的位置只是传给 downPieces 的字符串，并没有记录棋盘。棋盘（WeiqiBoard）用每种颜色一组 long[]
+ * 位棋盘记录落子，落子、提子和数气时只使用预先分配的数组；享元棋子只在渲染棋盘时使用。
+ * 字符串坐标（如"5,6"）和字符串类型（"w"/"b"）每次落子都要解析和比较字符串，所以棋子另外提供了以打包成 int
+ * 的交叉点编号落子的方法，享元工厂也可以按颜色枚举或颜色序号取棋子，落子过程中不分配对象。
+ * 【例3】通用享元工厂。
+ * 分析：WeiqiFactory 把两种棋子写死在 ArrayList 中，其他类型返回 null。通用享元工厂（FlyweightFactory）以内部
+ * 状态为键，第一次请求时创建享元，之后共享；它用 ConcurrentHashMap 保存享元，不加全局锁，可以选择用弱引用或
+ * 软引用保存享元，让不再使用的享元被回收，并统计命中率和存活享元数量。
+ * 【例4】棋谱档案。
+ * 分析：棋谱按紧凑的二进制格式保存，每一手只用一个字节表示颜色、一个 short 表示交叉点编号。读取时把文件按窗口
+ * 映射到内存（MappedByteBuffer），直接从映射的缓冲区读出每一手回放到棋盘上，不把棋谱复制到堆上，扫描很大的
+ * 档案时也不会产生垃圾。
+ * 【例5】局面缓存。
+ * 分析：不同棋局中经常出现相同的局面。棋盘在落子和提子时增量更新局面的 Zobrist 哈希，局面缓存（PositionCache）
+ * 以这个哈希为键保存分析结果，容量固定、按槽位分段加锁，槽位冲突时按替换策略决定是否覆盖，并统计命中率。
+ * 【例6】批量计算胜负。
+ * 分析：终局后按数子法计算胜负，用基本类型数组做空点的填充。大量棋局时把棋盘分段交给线程池并行计算，结果放在
+ * int 数组中返回。
  *
  * 享元模式的扩展
  * 享元模式中通常包含可以共享的部分和不可以共享的部分。在实际使用过程中，有时候会稍加改变，即存在两种特殊的
@@ -67,10 +109,234 @@ public class FlyweightPattern {
         b.downPieces("3,3");
     }
 
+    public static void testWeiqiBoard(){
+        WeiqiBoard board = new WeiqiBoard();
+        WeiqiFactory weiqiFactory = new WeiqiFactory();
+        ChessPieces w = weiqiFactory.getChessPieces(PieceColor.WHITE);
+        ChessPieces b = weiqiFactory.getChessPieces(PieceColor.BLACK);
+        w.downPieces(WeiqiBoard.point(0, 0), board);
+        b.downPieces(WeiqiBoard.point(0, 1), board);
+        int captured = b.downPieces(WeiqiBoard.point(1, 0), board);//白子没有气了
+        System.out.println("黑子提掉了" + captured + "个白子");
+        board.render(weiqiFactory);
+    }
+
+    public static void testFlyweightFactory(){
+        FlyweightFactory<PieceColor,ChessPieces> factory = new FlyweightFactory<>(
+                new FlyweightCreator<PieceColor, ChessPieces>() {
+                    @Override
+                    public ChessPieces create(PieceColor key) {
+                        return key == PieceColor.WHITE ? new WhitePieces() : new BlackPieces();
+                    }
+                }, ReferenceType.WEAK);
+        ChessPieces w1 = factory.get(PieceColor.WHITE);
+        ChessPieces w2 = factory.get(PieceColor.WHITE);
+        ChessPieces b = factory.get(PieceColor.BLACK);
+        System.out.println("两次取到的白子是同一个对象：" + (w1 == w2));
+        b.downPieces("3,3");
+        factory.printStats();
+    }
+
+    public static void testGameRecordArchive(){
+        File file = null;
+        try {
+            file = File.createTempFile("weiqi", ".rec");
+            GameRecordWriter writer = new GameRecordWriter(file);
+            try {
+                byte[] colors = {WeiqiBoard.WHITE, WeiqiBoard.BLACK, WeiqiBoard.BLACK};
+                short[] points = {(short) WeiqiBoard.point(0, 0), (short) WeiqiBoard.point(0, 1), (short) WeiqiBoard.point(1, 0)};
+                writer.writeGame(colors, points, 3);
+                writer.writeGame(colors, points, 1);
+            } finally {
+                writer.close();
+            }
+            final WeiqiBoard board = new WeiqiBoard();
+            GameRecordArchive archive = new GameRecordArchive(file);
+            try {
+                archive.scan(new BoardReplayer(board) {
+                    @Override
+                    public void endGame(int gameIndex) {
+                        System.out.println("第" + gameIndex + "盘棋 白子:" + board.stoneCount(WeiqiBoard.WHITE)
+                                + " 黑子:" + board.stoneCount(WeiqiBoard.BLACK));
+                    }
+                });
+            } finally {
+                archive.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if(file != null){
+                file.delete();
+            }
+        }
+    }
+
+    //生成随机棋谱档案再扫描回放，统计扫描速度
+    public static void benchmarkGameRecordArchive(){
+        File file = null;
+        try {
+            file = File.createTempFile("weiqi", ".rec");
+            Random random = new Random(19);
+            byte[] colors = new byte[250];
+            short[] points = new short[250];
+            GameRecordWriter writer = new GameRecordWriter(file);
+            try {
+                for (int game = 0; game < 20000; game++) {
+                    for (int i = 0; i < colors.length; i++) {
+                        colors[i] = (byte) (i & 1);
+                        points[i] = (short) random.nextInt(WeiqiBoard.POINTS);
+                    }
+                    writer.writeGame(colors, points, colors.length);
+                }
+            } finally {
+                writer.close();
+            }
+            BoardReplayer replayer = new BoardReplayer(new WeiqiBoard());
+            GameRecordArchive archive = new GameRecordArchive(file);
+            long begin = System.nanoTime();
+            try {
+                archive.scan(replayer);
+            } finally {
+                archive.close();
+            }
+            long nanos = System.nanoTime() - begin;
+            System.out.println("扫描" + file.length() / 1024 + "KB，每秒" + file.length() * 1000L / nanos + "MB，"
+                    + replayer.getMoves() * 1000000000L / nanos + "手");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if(file != null){
+                file.delete();
+            }
+        }
+    }
+
+    public static void testPositionCache(){
+        PositionCache cache = new PositionCache(1 << 16, ReplacementPolicy.DEPTH_PREFERRED);
+        WeiqiFactory weiqiFactory = new WeiqiFactory();
+        WeiqiBoard board = new WeiqiBoard();
+        int[] points = {WeiqiBoard.point(3, 3), WeiqiBoard.point(15, 15), WeiqiBoard.point(3, 15), WeiqiBoard.point(15, 3)};
+        for (int game = 0; game < 3; game++) {//三盘棋下出相同的局面
+            board.clear();
+            for (int i = 0; i < points.length; i++) {
+                weiqiFactory.getChessPieces((byte) (i & 1)).downPieces(points[i], board);
+                if(cache.get(board.getHash()) == PositionCache.NOT_FOUND){
+                    int score = board.stoneCount(WeiqiBoard.BLACK) - board.stoneCount(WeiqiBoard.WHITE);//分析局面
+                    cache.put(board.getHash(), score, 1);
+                }
+            }
+        }
+        cache.printStats();
+    }
+
+    public static void testBatchScorer(){
+        List<WeiqiBoard> boards = new ArrayList<>();
+        WeiqiBoard board = new WeiqiBoard();
+        for (int x = 0; x < WeiqiBoard.SIZE; x++) {
+            board.play(WeiqiBoard.BLACK, x, 9);//黑方占左半边
+            board.play(WeiqiBoard.WHITE, x, 10);//白方占右半边
+        }
+        boards.add(board);
+        boards.add(new WeiqiBoard());
+        int[] scores = BatchScorer.scoreAll(boards);
+        System.out.println("第0盘黑方领先" + scores[0] + "目，第1盘黑方领先" + scores[1] + "目");
+    }
+
+    //随机终局批量计算胜负，对比单线程和多线程的吞吐量
+    public static void benchmarkBatchScorer(){
+        Random random = new Random(19);
+        List<WeiqiBoard> boards = new ArrayList<>();
+        for (int game = 0; game < 20000; game++) {
+            WeiqiBoard board = new WeiqiBoard();
+            for (int i = 0; i < 250; i++) {
+                board.play(i & 1, random.nextInt(WeiqiBoard.POINTS));
+            }
+            boards.add(board);
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            long begin = System.nanoTime();
+            BatchScorer.scoreAll(boards, executor, threads);
+            long nanos = System.nanoTime() - begin;
+            executor.shutdown();
+            System.out.println("线程数:" + threads + " 每秒计算" + boards.size() * 1000000000L / nanos + "盘");
+        }
+    }
+
+    //随机落子回放，统计每秒能处理的局面数
+    public static void benchmarkWeiqiBoard(){
+        WeiqiBoard board = new WeiqiBoard();
+        Random random = new Random(19);
+        int[] moves = new int[1 << 16];
+        for (int i = 0; i < moves.length; i++) {
+            moves[i] = random.nextInt(WeiqiBoard.POINTS);
+        }
+        int total = 5000000;
+        long begin = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            if(i % 300 == 0){
+                board.clear();//每300手重新开一局
+            }
+            board.play(i & 1, moves[i & (moves.length - 1)]);
+        }
+        long nanos = System.nanoTime() - begin;
+        System.out.println("回放" + total + "手，每秒" + total * 1000000000L / nanos + "个局面");
+    }
+
+    //落子接口对比：字符串坐标+字符串类型 vs 打包的int坐标+颜色序号
+    public static void benchmarkDownPieces(){
+        WeiqiFactory factory = new WeiqiFactory();
+        WeiqiBoard board = new WeiqiBoard();
+        Random random = new Random(19);
+        int count = 1 << 16;
+        int[] points = new int[count];
+        byte[] colors = new byte[count];
+        String[] pointStrings = new String[count];
+        String[] typeStrings = new String[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = random.nextInt(WeiqiBoard.POINTS);
+            colors[i] = (byte) (i & 1);
+            pointStrings[i] = WeiqiBoard.pointX(points[i]) + "," + WeiqiBoard.pointY(points[i]);
+            typeStrings[i] = colors[i] == WeiqiBoard.WHITE ? "w" : "b";
+        }
+        int total = 5000000;
+        long begin = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            if(i % 300 == 0){
+                board.clear();
+            }
+            int index = i & (count - 1);
+            ChessPieces pieces = factory.getChessPieces(typeStrings[index]);
+            String[] xy = pointStrings[index].split(",");
+            int point = WeiqiBoard.point(Integer.parseInt(xy[0]), Integer.parseInt(xy[1]));
+            pieces.downPieces(point, board);
+        }
+        long stringNanos = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            if(i % 300 == 0){
+                board.clear();
+            }
+            int index = i & (count - 1);
+            factory.getChessPieces(colors[index]).downPieces(points[index], board);
+        }
+        long primitiveNanos = System.nanoTime() - begin;
+        System.out.println("字符串接口:" + stringNanos / total + "ns/手 int接口:" + primitiveNanos / total + "ns/手");
+    }
+
+
+    //棋子颜色，序号与WeiqiFactory中棋子的下标一致
+    enum PieceColor{
+        WHITE, BLACK
+    }
 
     //抽象享元角色：棋子
     interface ChessPieces{
         void downPieces(String point);    //下子
+        int downPieces(int point, WeiqiBoard board);    //下子到棋盘上，point由WeiqiBoard.point(x,y)打包，返回提子数
+        PieceColor getColor();
     }
 
     //具体享元角色：白子
@@ -81,6 +347,16 @@ public class FlyweightPattern {
             System.out.printf("白子下到了%s的位置",point);
             System.out.println("");
         }
+
+        @Override
+        public int downPieces(int point, WeiqiBoard board) {
+            return board.play(WeiqiBoard.WHITE, point);
+        }
+
+        @Override
+        public PieceColor getColor() {
+            return PieceColor.WHITE;
+        }
     }
 
     //具体享元角色：白子
@@ -92,6 +368,16 @@ public class FlyweightPattern {
             System.out.println("");
 
         }
+
+        @Override
+        public int downPieces(int point, WeiqiBoard board) {
+            return board.play(WeiqiBoard.BLACK, point);
+        }
+
+        @Override
+        public PieceColor getColor() {
+            return PieceColor.BLACK;
+        }
     }
 
     //享元工厂角色
@@ -121,6 +407,713 @@ public class FlyweightPattern {
                 return null;
             }
         }
+
+        //按颜色取棋子，不需要比较字符串
+        public ChessPieces getChessPieces(PieceColor color)
+        {
+            return qz.get(color.ordinal());
+        }
+
+        //按颜色序号取棋子，序号即PieceColor.ordinal()
+        public ChessPieces getChessPieces(byte ordinal)
+        {
+            return qz.get(ordinal);
+        }
+    }
+
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //19路围棋棋盘：每种颜色一组long[]位棋盘记录落子，落子、提子和数气的过程中不分配对象
+    static class WeiqiBoard{
+        static final int SIZE = 19;
+        static final int POINTS = SIZE * SIZE;
+        static final int WORDS = (POINTS + 63) >>> 6;
+        static final int EMPTY = -1;
+        static final int WHITE = 0;//与WeiqiFactory中白子的下标一致
+        static final int BLACK = 1;//与WeiqiFactory中黑子的下标一致
+        static final int ILLEGAL = -1;
+
+        //每个交叉点上下左右4个相邻点，没有的记为-1
+        static final int[] NEIGHBORS = new int[POINTS * 4];
+        //Zobrist随机数：每种颜色在每个交叉点上一个，局面的哈希是所有棋子随机数的异或
+        private static final long[] ZOBRIST = new long[2 * POINTS];
+
+        static {
+            Random random = new Random(0x5EED);//固定种子，不同棋盘对象和多次运行的哈希一致
+            for (int i = 0; i < ZOBRIST.length; i++) {
+                ZOBRIST[i] = random.nextLong();
+            }
+            for (int p = 0; p < POINTS; p++) {
+                int x = p / SIZE;
+                int y = p % SIZE;
+                NEIGHBORS[p * 4] = x > 0 ? p - SIZE : -1;
+                NEIGHBORS[p * 4 + 1] = x < SIZE - 1 ? p + SIZE : -1;
+                NEIGHBORS[p * 4 + 2] = y > 0 ? p - 1 : -1;
+                NEIGHBORS[p * 4 + 3] = y < SIZE - 1 ? p + 1 : -1;
+            }
+        }
+
+        private final long[][] stones = new long[2][WORDS];
+        private long hash;
+        //数气时复用的临时空间
+        private final long[] visited = new long[WORDS];
+        private final long[] libertySeen = new long[WORDS];
+        private final int[] stack = new int[POINTS];
+        private final int[] group = new int[POINTS];
+        private int groupSize;
+
+        //把坐标打包成交叉点编号：x行y列，x和y都从0开始
+        static int point(int x, int y){
+            return x * SIZE + y;
+        }
+
+        static int pointX(int point){
+            return point / SIZE;
+        }
+
+        static int pointY(int point){
+            return point % SIZE;
+        }
+
+        public int get(int point){
+            int word = point >>> 6;
+            long mask = 1L << point;
+            if((stones[WHITE][word] & mask) != 0){
+                return WHITE;
+            }
+            if((stones[BLACK][word] & mask) != 0){
+                return BLACK;
+            }
+            return EMPTY;
+        }
+
+        public int stoneCount(int color){
+            int count = 0;
+            for (long word : stones[color]) {
+                count += Long.bitCount(word);
+            }
+            return count;
+        }
+
+        public void clear(){
+            Arrays.fill(stones[WHITE], 0);
+            Arrays.fill(stones[BLACK], 0);
+            hash = 0;
+        }
+
+        //局面的Zobrist哈希，随落子和提子增量更新
+        public long getHash(){
+            return hash;
+        }
+
+        public int play(int color, int x, int y){
+            if(x < 0 || x >= SIZE || y < 0 || y >= SIZE){
+                throw new IllegalArgumentException("坐标超出棋盘：" + x + "," + y);
+            }
+            return play(color, point(x, y));
+        }
+
+        //落子并提掉没有气的对方棋子，返回提子数；落在已有棋子处或自杀返回ILLEGAL（不处理打劫）
+        //交叉点或颜色不合法时在修改棋盘之前抛出IllegalArgumentException
+        public int play(int color, int point){
+            if(point < 0 || point >= POINTS){
+                throw new IllegalArgumentException("交叉点超出棋盘：" + point);
+            }
+            if(color != WHITE && color != BLACK){
+                throw new IllegalArgumentException("棋子颜色不合法：" + color);
+            }
+            if(get(point) != EMPTY){
+                return ILLEGAL;
+            }
+            set(color, point);
+            int opponent = 1 - color;
+            int captured = 0;
+            for (int i = point * 4, end = i + 4; i < end; i++) {
+                int neighbor = NEIGHBORS[i];
+                if(neighbor >= 0 && get(neighbor) == opponent && countLiberties(neighbor) == 0){
+                    captured += removeGroup(opponent);
+                }
+            }
+            if(captured == 0 && countLiberties(point) == 0){
+                unset(color, point);
+                return ILLEGAL;
+            }
+            return captured;
+        }
+
+        //数point所在棋块的气，同时把棋块中的棋子记录在group中
+        public int countLiberties(int point){
+            int color = get(point);
+            if(color == EMPTY){
+                return 0;
+            }
+            long[] own = stones[color];
+            long[] other = stones[1 - color];
+            Arrays.fill(visited, 0);
+            Arrays.fill(libertySeen, 0);
+            int liberties = 0;
+            int top = 0;
+            groupSize = 0;
+            stack[top++] = point;
+            visited[point >>> 6] |= 1L << point;
+            while (top > 0){
+                int p = stack[--top];
+                group[groupSize++] = p;
+                for (int i = p * 4, end = i + 4; i < end; i++) {
+                    int n = NEIGHBORS[i];
+                    if(n < 0){
+                        continue;
+                    }
+                    int word = n >>> 6;
+                    long mask = 1L << n;
+                    if((own[word] & mask) != 0){
+                        if((visited[word] & mask) == 0){
+                            visited[word] |= mask;
+                            stack[top++] = n;
+                        }
+                    }else if((other[word] & mask) == 0 && (libertySeen[word] & mask) == 0){
+                        libertySeen[word] |= mask;
+                        liberties++;
+                    }
+                }
+            }
+            return liberties;
+        }
+
+        //提掉最近一次countLiberties记录的棋块
+        private int removeGroup(int color){
+            for (int i = 0; i < groupSize; i++) {
+                unset(color, group[i]);
+            }
+            return groupSize;
+        }
+
+        private void set(int color, int point){
+            stones[color][point >>> 6] |= 1L << point;
+            hash ^= ZOBRIST[color * POINTS + point];
+        }
+
+        private void unset(int color, int point){
+            stones[color][point >>> 6] &= ~(1L << point);
+            hash ^= ZOBRIST[color * POINTS + point];
+        }
+
+        //渲染时才用到享元棋子
+        public void render(WeiqiFactory factory){
+            for (int p = 0; p < POINTS; p++) {
+                int color = get(p);
+                if(color != EMPTY){
+                    factory.getChessPieces((byte) color).downPieces(pointX(p) + "," + pointY(p));
+                }
+            }
+        }
+    }
+
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //享元的创建方法：根据内部状态创建享元
+    interface FlyweightCreator<K,V>{
+        V create(K key);
+    }
+
+    //享元工厂对享元的引用方式
+    enum ReferenceType{
+        STRONG, //一直保留
+        WEAK,   //没有外部引用时随时可以回收
+        SOFT    //内存不足时才回收
+    }
+
+    //通用享元工厂：以内部状态为键共享享元，不加全局锁，可以用弱引用或软引用让不再使用的享元被回收
+    static class FlyweightFactory<K,V>{
+        private final ConcurrentHashMap<K,Object> flyweights = new ConcurrentHashMap<>();
+        private final ReferenceQueue<V> queue = new ReferenceQueue<>();
+        private final ReferenceType referenceType;
+        private final FlyweightCreator<K,V> creator;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        public FlyweightFactory(FlyweightCreator<K,V> creator, ReferenceType referenceType){
+            this.creator = creator;
+            this.referenceType = referenceType;
+        }
+
+        public V get(K key){
+            Object ref = flyweights.get(key);
+            V flyweight = unwrap(ref);
+            if(flyweight!=null){
+                hits.incrementAndGet();
+                return flyweight;
+            }
+            misses.incrementAndGet();
+            //只在未命中时清理：只有未命中才会增加条目，命中的查找不碰引用队列的锁
+            expungeStaleEntries();
+            V created = creator.create(key);
+            Object createdRef = wrap(key, created);
+            while (true){
+                boolean stored = ref==null
+                        ? flyweights.putIfAbsent(key, createdRef)==null
+                        : flyweights.replace(key, ref, createdRef);//原来的享元已被回收
+                if(stored){
+                    return created;
+                }
+                ref = flyweights.get(key);
+                flyweight = unwrap(ref);
+                if(flyweight!=null){
+                    return flyweight;//别的线程先创建了，用它的
+                }
+            }
+        }
+
+        private Object wrap(K key, V flyweight){
+            switch (referenceType){
+                case WEAK:
+                    return new KeyedWeakReference<>(key, flyweight, queue);
+                case SOFT:
+                    return new KeyedSoftReference<>(key, flyweight, queue);
+                default:
+                    return flyweight;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V unwrap(Object ref){
+            if(ref instanceof Reference){
+                return ((Reference<V>) ref).get();
+            }
+            return (V) ref;
+        }
+
+        //清理已被回收的享元，强引用时没有东西会被回收
+        @SuppressWarnings("unchecked")
+        private void expungeStaleEntries(){
+            if(referenceType == ReferenceType.STRONG){
+                return;
+            }
+            Reference<? extends V> ref;
+            while ((ref = queue.poll()) != null){
+                flyweights.remove(((KeyedReference<K>) ref).getKey(), ref);
+            }
+        }
+
+        public double getHitRatio(){
+            long h = hits.get();
+            long total = h + misses.get();
+            return total==0 ? 0 : (double) h / total;
+        }
+
+        //存活的享元数量
+        public int getLiveCount(){
+            expungeStaleEntries();
+            return flyweights.size();
+        }
+
+        public void printStats(){
+            System.out.println("享元命中:" + hits.get() + " 未命中:" + misses.get()
+                    + " 命中率:" + (int) (getHitRatio() * 100) + "%"
+                    + " 存活享元:" + getLiveCount());
+        }
+    }
+
+    //记住键的引用，享元被回收后据此从工厂中删除
+    interface KeyedReference<K>{
+        K getKey();
+    }
+
+    static class KeyedWeakReference<K,V> extends WeakReference<V> implements KeyedReference<K>{
+        private final K key;
+
+        KeyedWeakReference(K key, V referent, ReferenceQueue<? super V> queue){
+            super(referent, queue);
+            this.key = key;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+    }
+
+    static class KeyedSoftReference<K,V> extends SoftReference<V> implements KeyedReference<K>{
+        private final K key;
+
+        KeyedSoftReference(K key, V referent, ReferenceQueue<? super V> queue){
+            super(referent, queue);
+            this.key = key;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+    }
+
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //棋谱文件格式：文件头(int魔数+short版本号)，之后每盘棋为 int手数 + 每手(byte颜色 + short交叉点编号)
+    static final int RECORD_MAGIC = 0x57514752;//"WQGR"
+    static final short RECORD_VERSION = 1;
+    static final int RECORD_HEADER_BYTES = 6;
+    static final int MOVE_BYTES = 3;
+
+    //棋谱写入器：通过直接缓冲区批量写入文件
+    static class GameRecordWriter implements Closeable{
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        public GameRecordWriter(File file) throws IOException {
+            channel = new FileOutputStream(file).getChannel();
+            buffer.putInt(RECORD_MAGIC).putShort(RECORD_VERSION);
+        }
+
+        //写入一盘棋的前moveCount手
+        public void writeGame(byte[] colors, short[] points, int moveCount) throws IOException {
+            ensure(4);
+            buffer.putInt(moveCount);
+            for (int i = 0; i < moveCount; i++) {
+                ensure(MOVE_BYTES);
+                buffer.put(colors[i]).putShort(points[i]);
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if(buffer.remaining() < bytes){
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    //逐手读取棋谱的回调
+    interface MoveVisitor{
+        void startGame(int gameIndex, int moveCount);
+        void move(int color, int point);
+        void endGame(int gameIndex);
+    }
+
+    //把棋谱回放到棋盘上
+    static class BoardReplayer implements MoveVisitor{
+        private final WeiqiBoard board;
+        private long moves;
+
+        BoardReplayer(WeiqiBoard board){
+            this.board = board;
+        }
+
+        @Override
+        public void startGame(int gameIndex, int moveCount) {
+            board.clear();
+        }
+
+        @Override
+        public void move(int color, int point) {
+            board.play(color, point);
+            moves++;
+        }
+
+        @Override
+        public void endGame(int gameIndex) {
+        }
+
+        public long getMoves(){
+            return moves;
+        }
+    }
+
+    //棋谱档案：按窗口把文件映射到内存，直接从映射的缓冲区读出每一手交给MoveVisitor，不复制也不在堆上分配
+    //映射的窗口没有公开的方法立即释放，要等GC回收MappedByteBuffer后才解除映射；32位设备的地址空间只有几GB，
+    //所以窗口要小，并且同一时间只持有一个窗口，扫描很大的文件时已解除引用的旧窗口占用的地址空间也有限
+    static class GameRecordArchive implements Closeable{
+        private static final long WINDOW = 32L * 1024 * 1024;//单次映射的最大字节数，一盘棋不能超过它
+
+        private final FileChannel channel;
+        private final long window;
+
+        public GameRecordArchive(File file) throws IOException {
+            this(file, WINDOW);
+        }
+
+        GameRecordArchive(File file, long window) throws IOException {
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+            this.window = window;
+        }
+
+        //依次读取所有棋局，返回棋局数
+        public int scan(MoveVisitor visitor) throws IOException {
+            long size = channel.size();
+            if(size < RECORD_HEADER_BYTES){
+                throw new IOException("棋谱文件已损坏：文件头不完整");
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, RECORD_HEADER_BYTES);
+            if(header.getInt(0) != RECORD_MAGIC || header.getShort(4) != RECORD_VERSION){
+                throw new IOException("不是棋谱文件或版本不支持");
+            }
+            int games = 0;
+            long position = RECORD_HEADER_BYTES;
+            header = null;
+            while (position < size){
+                long length = Math.min(window, size - position);
+                //上一个窗口已不再被引用，GC回收后就会解除映射
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int offset = 0;
+                while (true){
+                    if(length - offset < 4){
+                        break;
+                    }
+                    int moveCount = buffer.getInt(offset);
+                    long gameBytes = 4 + (long) moveCount * MOVE_BYTES;
+                    if(moveCount < 0 || gameBytes > window){
+                        throw new IOException("棋谱文件已损坏：第" + games + "盘棋的手数为" + moveCount);
+                    }
+                    if(offset + gameBytes > length){
+                        break;//这盘棋跨过了窗口末尾，从它的开头重新映射
+                    }
+                    visitor.startGame(games, moveCount);
+                    int moveOffset = offset + 4;
+                    for (int i = 0; i < moveCount; i++, moveOffset += MOVE_BYTES) {
+                        int color = buffer.get(moveOffset);
+                        int point = buffer.getShort(moveOffset + 1);
+                        if((color != WeiqiBoard.WHITE && color != WeiqiBoard.BLACK) || point < 0 || point >= WeiqiBoard.POINTS){
+                            throw new IOException("棋谱文件已损坏：第" + games + "盘棋第" + i + "手");
+                        }
+                        visitor.move(color, point);
+                    }
+                    visitor.endGame(games);
+                    games++;
+                    offset = moveOffset;
+                }
+                if(offset == 0){
+                    throw new IOException("棋谱文件已损坏：文件末尾的棋局不完整");
+                }
+                position += offset;
+            }
+            return games;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //置换表的替换策略：槽位已被别的局面占用时是否覆盖
+    enum ReplacementPolicy{
+        ALWAYS,         //总是用新局面覆盖
+        DEPTH_PREFERRED //只有新结果的分析深度不低于原有结果时才覆盖
+    }
+
+    //局面缓存(置换表)：按局面的Zobrist哈希保存分析结果，容量固定，按槽位分段加锁
+    static class PositionCache{
+        static final int NOT_FOUND = Integer.MIN_VALUE;
+        private static final int STRIPES = 64;//必须是2的幂
+
+        private final long[] keys;
+        private final int[] values;
+        private final int[] depths;
+        private final boolean[] used;
+        private final int mask;
+        private final Object[] locks = new Object[STRIPES];
+        private final ReplacementPolicy policy;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong replacements = new AtomicLong();
+
+        //容量会向上取整为2的幂
+        public PositionCache(int capacity, ReplacementPolicy policy){
+            int size = Integer.highestOneBit(Math.max(capacity, STRIPES) - 1) << 1;
+            keys = new long[size];
+            values = new int[size];
+            depths = new int[size];
+            used = new boolean[size];
+            mask = size - 1;
+            this.policy = policy;
+            for (int i = 0; i < STRIPES; i++) {
+                locks[i] = new Object();
+            }
+        }
+
+        private int slot(long hash){
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        //取出局面的分析结果，没有时返回NOT_FOUND
+        public int get(long hash){
+            int slot = slot(hash);
+            synchronized (locks[slot & (STRIPES - 1)]){
+                if(used[slot] && keys[slot] == hash){
+                    hits.incrementAndGet();
+                    return values[slot];
+                }
+            }
+            misses.incrementAndGet();
+            return NOT_FOUND;
+        }
+
+        public void put(long hash, int value, int depth){
+            int slot = slot(hash);
+            synchronized (locks[slot & (STRIPES - 1)]){
+                if(used[slot] && keys[slot] != hash){
+                    if(policy == ReplacementPolicy.DEPTH_PREFERRED && depth < depths[slot]){
+                        return;
+                    }
+                    replacements.incrementAndGet();
+                }
+                used[slot] = true;
+                keys[slot] = hash;
+                values[slot] = value;
+                depths[slot] = depth;
+            }
+        }
+
+        public double getHitRatio(){
+            long h = hits.get();
+            long total = h + misses.get();
+            return total == 0 ? 0 : (double) h / total;
+        }
+
+        public void printStats(){
+            System.out.println("局面缓存命中:" + hits.get() + " 未命中:" + misses.get()
+                    + " 命中率:" + (int) (getHitRatio() * 100) + "%"
+                    + " 覆盖:" + replacements.get());
+        }
+    }
+
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //数子法计算胜负：棋子数加上只被一方包围的空点数，返回黑方减白方的目数（不含贴目）
+    static class TerritoryScorer{
+        //复用的临时空间，所以一个TerritoryScorer只能在一个线程中使用
+        private final int[] colors = new int[WeiqiBoard.POINTS];
+        private final boolean[] visited = new boolean[WeiqiBoard.POINTS];
+        private final int[] stack = new int[WeiqiBoard.POINTS];
+
+        public int score(WeiqiBoard board){
+            int white = 0;
+            int black = 0;
+            for (int p = 0; p < WeiqiBoard.POINTS; p++) {
+                int color = board.get(p);
+                colors[p] = color;
+                visited[p] = false;
+                if(color == WeiqiBoard.WHITE){
+                    white++;
+                }else if(color == WeiqiBoard.BLACK){
+                    black++;
+                }
+            }
+            for (int p = 0; p < WeiqiBoard.POINTS; p++) {
+                if(colors[p] != WeiqiBoard.EMPTY || visited[p]){
+                    continue;
+                }
+                //填充这一块空点，同时记录它接触到的棋子颜色
+                int size = 0;
+                int borders = 0;
+                int top = 0;
+                stack[top++] = p;
+                visited[p] = true;
+                while (top > 0){
+                    int q = stack[--top];
+                    size++;
+                    for (int i = q * 4, end = i + 4; i < end; i++) {
+                        int n = WeiqiBoard.NEIGHBORS[i];
+                        if(n < 0){
+                            continue;
+                        }
+                        int color = colors[n];
+                        if(color == WeiqiBoard.EMPTY){
+                            if(!visited[n]){
+                                visited[n] = true;
+                                stack[top++] = n;
+                            }
+                        }else{
+                            borders |= 1 << color;
+                        }
+                    }
+                }
+                if(borders == 1 << WeiqiBoard.WHITE){
+                    white += size;
+                }else if(borders == 1 << WeiqiBoard.BLACK){
+                    black += size;
+                }
+            }
+            return black - white;
+        }
+    }
+
+    //批量计算胜负：把棋盘分成若干段，交给线程池并行计算，结果按棋盘顺序放在int数组中
+    static class BatchScorer{
+        //每个线程一份数地盘的临时空间，线程池的线程跨批次复用它
+        private static final ThreadLocal<TerritoryScorer> SCORERS = new ThreadLocal<TerritoryScorer>(){
+            @Override
+            protected TerritoryScorer initialValue() {
+                return new TerritoryScorer();
+            }
+        };
+
+        //不指定线程池时共用的线程池：第一次使用时才创建，之后每一批都复用，不用每批都启动线程；守护线程，不阻止进程退出
+        private static class DefaultPool{
+            static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+            static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "batch-scorer-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        public static int[] scoreAll(List<WeiqiBoard> boards){
+            return scoreAll(boards, DefaultPool.EXECUTOR, DefaultPool.PARALLELISM);
+        }
+
+        public static int[] scoreAll(final List<WeiqiBoard> boards, ExecutorService executor, int parallelism){
+            final int[] results = new int[boards.size()];
+            int chunk = (boards.size() + parallelism - 1) / parallelism;
+            List<Future<?>> futures = new ArrayList<>(parallelism);
+            for (int from = 0; from < boards.size(); from += chunk) {
+                final int start = from;
+                final int end = Math.min(boards.size(), from + chunk);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        TerritoryScorer scorer = SCORERS.get();
+                        for (int i = start; i < end; i++) {
+                            results[i] = scorer.score(boards.get(i));
+                        }
+                    }
+                }));
+            }
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("计算胜负被中断", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("计算胜负失败", e.getCause());
+            }
+            return results;
+        }
     }
 
 
@@ -1,12 +1,38 @@
 package com.xiaozi.designpatterntestdemo.pattern;
 
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EventListener;
 import java.util.EventObject;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author : Sun
@@ -65,6 +91,20 @@ import java.util.Observer;
  * 方法，即当人民币汇率发生改变时通知相关公司；公司（Company）类是抽象观察者，它定义了一个有关汇率反应的抽
  * 象方法 response(int number)；进口公司（ImportCompany）类和出口公司（ExportCompany）类是具体观察者类，
  * 它们实现了父类的 response(int number) 方法，即当它们接收到汇率发生改变的通知时作为相应的反应。
+ * 汇率变化很频繁时，慢的公司来不及处理，同步通知会拖住汇率。合并通知的人民币汇率（ConflatingRMBrate）给每个公司
+ * 一个只能保存一个待通知值的槽位，公司处理完上一次通知后，才收到最新的汇率变化（或者累加后的变化）。
+ * 同步通知时总耗时是所有公司耗时之和。并行通知的人民币汇率（ParallelRMBrate）让每个公司在线程池中各自执行，
+ * 每个公司有处理期限，超过期限的和出错的公司会被报告；可以等待所有公司处理完，也可以提交后立即返回。
+ * 每个公司都收到所有汇率变化，再在 response 中自己过滤（如进口公司判断 number>0），公司很多时大部分通知都是白费的。
+ * 按订阅范围通知的人民币汇率（IndexedRMBrate）让公司订阅时声明关心的基点范围，按范围建立索引，只通知范围内的公司。
+ *
+ * 【例1】中的监听器容器如果用 ArrayList，在通知过程中绑定监听器会抛出 ConcurrentModificationException，多线程下
+ * 也不安全。改用写时复制的数组后，通知时遍历的是快照，不需要加锁，绑定和解绑可以与通知同时进行。
+ * 同步通知时所有监听器都在敲钟的线程上执行，一个慢的监听器会拖住敲钟的线程。异步通知模式中，铃声事件预先分配在
+ * 环形缓冲区（RingEventDispatcher）的槽位中，敲钟只是写入一个槽位，每个监听器由自己的线程批量读取处理；支持单个
+ * 或多个敲钟线程，没有事件时可以选择空转、让出 CPU 或休眠等待。
+ * 每次同步敲钟都会产生一个新的铃声事件对象，事件很频繁时会产生大量垃圾。开启事件复用后，事件对象从敲钟线程自己的
+ * 事件池中取出，所有监听器都处理完后才放回池中；复用的事件对监听器是只读的，监听器也不能在处理完后继续持有它。
  *
  * 模式的扩展
  * 通过 java.util.Observable 类和 java.util.Observer 接口定义了观察者模式，只要实现它们的子类就可以编写
@@ -80,6 +120,16 @@ import java.util.Observer;
  * 目标类，该类中定义一个 SetPrice(float price) 方法，当原油数据发生变化时调用其父类的 notifyObservers(Object arg)
  * 方法来通知所有观察者；抽象观察者接口（Observer）在 Java 中已经定义，，只要定义其子类，即具体观察者类（
  * 包括多方类 Bull 和空方类 Bear），并实现 update(Observable o,Object arg) 方法即可。
+ * Observable 每次通知都要把 float 价格装箱成 Float，setChanged/notifyObservers 都要加锁，观察者还要再拆箱。
+ * 高频行情可以改用类型化的原油价格行情（OilPriceFeed）：监听器（PriceListener）直接接收 float 价格，订阅时用 CAS
+ * 替换监听器数组，发布时不装箱也不加锁。
+ * 汇率和原油期货也可以适配成响应式流的发布者（SubjectPublisher）：每个订阅者有一个有界缓冲区，只按订阅者请求
+ * （request）的数量发送数据，缓冲区满时按溢出策略丢弃最早的、丢弃最新的、让发布线程等待或者通知出错，订阅者
+ * 处理得慢时内存占用也是有界的。
+ *
+ * 通知的统计
+ * 铃、汇率和原油价格都可以设置通知统计（DispatchMetrics），运行时开启后记录每次通知的耗时分布、每个监听器的
+ * 回调耗时、监听器数量和每秒事件数，用来找出拖慢通知的监听器；关闭时几乎没有开销。
  *
  */
 public class ObserverPattern {
@@ -94,6 +144,229 @@ public class ObserverPattern {
         bell.ring(false); //打下课铃声
     }
 
+    //多个线程同时敲钟，另一个线程不停地绑定、解绑监听器，统计每秒通知次数
+    public static void benchmarkBellEventSource(){
+        final int publishers = 8;
+        final int rings = 200000;
+        final BellEventSource bell = new BellEventSource();
+        final AtomicLong heard = new AtomicLong();
+        final BellEventListener counter = new BellEventListener() {
+            @Override
+            public void heardBell(RingEvent e) {
+                heard.incrementAndGet();
+            }
+        };
+        for (int i = 0; i < 16; i++) {
+            bell.addPersonListener(counter);
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong churns = new AtomicLong();
+        Thread churn = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BellEventListener temp = new BellEventListener() {
+                    @Override
+                    public void heardBell(RingEvent e) {
+                    }
+                };
+                while (running.get()){
+                    bell.addPersonListener(temp);
+                    bell.removePersonListener(temp);
+                    churns.incrementAndGet();
+                }
+            }
+        });
+        churn.start();
+        final CountDownLatch done = new CountDownLatch(publishers);
+        long begin = System.nanoTime();
+        for (int i = 0; i < publishers; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < rings; j++) {
+                        bell.notifies(new RingEvent(bell, (j & 1) == 0));
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long nanos = System.nanoTime() - begin;
+        running.set(false);
+        System.out.println(publishers + "个线程敲钟" + publishers * rings + "次，每秒" + publishers * rings * 1000000000L / nanos
+                + "次，监听器收到" + heard.get() + "次，期间绑定解绑" + churns.get() + "次");
+    }
+
+    //对比每次敲钟新建事件和复用事件时，每次敲钟分配的字节数
+    public static void benchmarkEventPooling(){
+        BellEventSource bell = new BellEventSource();
+        final AtomicLong heard = new AtomicLong();
+        //三种不同的监听器，避免虚拟机把监听器内联后优化掉事件对象的分配
+        bell.addPersonListener(new BellEventListener() {
+            @Override
+            public void heardBell(RingEvent e) {
+                if(e.getSound()){
+                    heard.lazySet(heard.get() + 1);
+                }
+            }
+        });
+        bell.addPersonListener(new BellEventListener() {
+            @Override
+            public void heardBell(RingEvent e) {
+                if(!e.getSound()){
+                    heard.lazySet(heard.get() + 1);
+                }
+            }
+        });
+        bell.addPersonListener(new BellEventListener() {
+            @Override
+            public void heardBell(RingEvent e) {
+                if(e.getSource() != null){
+                    heard.lazySet(heard.get() + 1);
+                }
+            }
+        });
+        int rings = 1000000;
+        for (int round = 0; round < 2; round++) {
+            boolean pooling = round == 1;
+            bell.setEventPooling(pooling);
+            for (int i = 0; i < rings; i++) {
+                bell.fire((i & 1) == 0);//预热
+            }
+            long before = allocatedBytes();
+            long begin = System.nanoTime();
+            for (int i = 0; i < rings; i++) {
+                bell.fire((i & 1) == 0);
+            }
+            long nanos = System.nanoTime() - begin;
+            long bytes = allocatedBytes() - before;
+            System.out.println((pooling ? "复用事件" : "新建事件") + " 每次敲钟" + nanos / rings + "ns，"
+                    + (before < 0 ? "当前虚拟机不支持统计分配字节数" : "分配" + bytes / rings + "字节"));
+        }
+    }
+
+    //当前线程累计分配的字节数，只有HotSpot等提供com.sun.management.ThreadMXBean的虚拟机支持，不支持时返回-1
+    static long allocatedBytes(){
+        try {
+            Object threadBean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public static void testAsyncBell(){
+        BellEventSource bell = new BellEventSource();
+        bell.addPersonListener(new TeacherEventListener());
+        bell.addPersonListener(new StuEventListener());
+        bell.startAsync(1024, false, WaitStrategy.PARK);
+        bell.ring(true);
+        bell.ring(false);
+        bell.stopAsync();
+    }
+
+    public static void testOilPriceFeed(){
+        OilPriceFeed feed = new OilPriceFeed();
+        feed.subscribe(new Bull());
+        feed.subscribe(new Bear());
+        feed.setPrice(10);
+        feed.setPrice(-8);
+    }
+
+    //对比Observable和OilPriceFeed每次发布价格的耗时和分配的字节数
+    public static void benchmarkOilPriceFeed(){
+        final AtomicLong sum = new AtomicLong();
+        OilFutures oil = new OilFutures();
+        OilPriceFeed feed = new OilPriceFeed();
+        for (int i = 0; i < 4; i++) {
+            oil.addObserver(new Observer() {
+                @Override
+                public void update(Observable o, Object arg) {
+                    sum.lazySet(sum.get() + (long) ((Float) arg).floatValue());
+                }
+            });
+            feed.subscribe(new PriceListener() {
+                @Override
+                public void onPrice(float price) {
+                    sum.lazySet(sum.get() + (long) price);
+                }
+            });
+        }
+        int ticks = 2000000;
+        for (int round = 0; round < 2; round++) {//第一轮预热
+            long before = allocatedBytes();
+            long begin = System.nanoTime();
+            for (int i = 0; i < ticks; i++) {
+                oil.setPrice(i % 1000);
+            }
+            long observableNanos = System.nanoTime() - begin;
+            long observableBytes = allocatedBytes() - before;
+            before = allocatedBytes();
+            begin = System.nanoTime();
+            for (int i = 0; i < ticks; i++) {
+                feed.setPrice(i % 1000);
+            }
+            long feedNanos = System.nanoTime() - begin;
+            long feedBytes = allocatedBytes() - before;
+            if(round == 1){
+                System.out.println("Observable:" + observableNanos / ticks + "ns/次 " + observableBytes / ticks + "字节/次"
+                        + " OilPriceFeed:" + feedNanos / ticks + "ns/次 " + feedBytes / ticks + "字节/次");
+            }
+        }
+    }
+
+    //异步通知各等待策略下每次发布的耗时，producers个线程同时敲钟
+    public static void benchmarkRingEventDispatcher(){
+        final int events = 1000000;
+        List<BellEventListener> listeners = new ArrayList<>();
+        final AtomicLong heard = new AtomicLong();
+        for (int i = 0; i < 4; i++) {
+            listeners.add(new BellEventListener() {
+                @Override
+                public void heardBell(RingEvent e) {
+                    heard.lazySet(heard.get() + 1);//不需要精确，只要不被优化掉
+                }
+            });
+        }
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            for (int producers = 1; producers <= 4; producers *= 4) {
+                final RingEventDispatcher dispatcher = new RingEventDispatcher(new Object(), listeners, 1 << 16,
+                        producers > 1, waitStrategy);
+                dispatcher.start();
+                final CountDownLatch done = new CountDownLatch(producers);
+                final AtomicLong publishNanos = new AtomicLong();
+                for (int i = 0; i < producers; i++) {
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            long begin = System.nanoTime();
+                            for (int j = 0; j < events; j++) {
+                                dispatcher.publish((j & 1) == 0);
+                            }
+                            publishNanos.addAndGet(System.nanoTime() - begin);
+                            done.countDown();
+                        }
+                    }).start();
+                }
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                dispatcher.halt();
+                System.out.println(waitStrategy + " 生产者:" + producers
+                        + " 每次发布" + publishNanos.get() / ((long) producers * events) + "ns");
+            }
+        }
+    }
+
     public static void testRateObserver(){
         System.out.println("------------");
         Rate rate = new RMBrate();
@@ -105,6 +378,136 @@ public class ObserverPattern {
         rate.change(-1);
     }
 
+    public static void testConflatingRate(){
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ConflatingRMBrate rate = new ConflatingRMBrate(executor, ConflationMode.MERGE);
+        rate.add(new ImportCompany());
+        rate.add(new Company() {//很慢的报表系统
+            @Override
+            public void response(int number) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                System.out.println("报表系统：汇率累计变化" + number + "个基点");
+            }
+        });
+        for (int i = 0; i < 5; i++) {
+            rate.change(1);
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rate.printStats();
+    }
+
+    public static void testParallelRate(){
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ParallelRMBrate rate = new ParallelRMBrate(executor, 50, true, new FanOutListener() {
+            @Override
+            public void onSlow(Company company, long elapsedMillis, boolean cancelled) {
+                System.out.println("公司处理超过期限：" + elapsedMillis + "ms" + (cancelled ? "，已取消" : ""));
+            }
+
+            @Override
+            public void onFailed(Company company, Throwable throwable) {
+                System.out.println("公司处理出错：" + throwable);
+            }
+        });
+        rate.add(new ImportCompany());
+        rate.add(new ExportCompany());
+        rate.add(new Company() {//很慢的报表系统
+            @Override
+            public void response(int number) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        long begin = System.nanoTime();
+        rate.change(10);
+        System.out.println("并行通知耗时：" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + "ms");
+        executor.shutdownNow();
+    }
+
+    public static void testIndexedRate(){
+        IndexedRMBrate rate = new IndexedRMBrate();
+        rate.subscribe(new ImportCompany(), 1, Integer.MAX_VALUE);//只关心升值
+        rate.subscribe(new ExportCompany(), Integer.MIN_VALUE, -1);//只关心贬值
+        rate.subscribe(new Company() {
+            @Override
+            public void response(int number) {
+                System.out.println("风控系统：汇率大幅变化" + number + "个基点！");
+            }
+        }, new RatePredicate() {
+            @Override
+            public boolean test(int number) {
+                return Math.abs(number) >= 100;
+            }
+        });
+        rate.change(10);
+        rate.change(-1);
+        rate.change(150);
+    }
+
+    public static void testDispatchMetrics(){
+        DispatchMetrics metrics = new DispatchMetrics();
+        metrics.setEnabled(true);
+        Rate rate = new RMBrate();
+        rate.setMetrics(metrics);
+        rate.add(new ImportCompany());
+        rate.add(new ExportCompany());
+        rate.change(10);
+        rate.change(-1);
+        metrics.printStats();
+        metrics.setEnabled(false);
+    }
+
+    public static void testRatePublisher(){
+        Executor direct = new Executor() {//在调用线程上直接发送，方便观察顺序
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        Rate rate = new RMBrate();
+        SubjectPublisher<Integer> publisher = SubjectPublisher.fromRate(rate, direct, OverflowPolicy.DROP_OLDEST, 2);
+        final Subscription[] holder = new Subscription[1];
+        publisher.subscribe(new Subscriber<Integer>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                holder[0] = subscription;
+                subscription.request(2);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+                System.out.println("订阅者收到汇率变化：" + item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                System.out.println("订阅者出错：" + throwable.getMessage());
+            }
+
+            @Override
+            public void onComplete() {
+                System.out.println("汇率发布结束");
+            }
+        });
+        for (int i = 1; i <= 5; i++) {
+            rate.change(i);//第3个变化会因为缓冲区只能放2个被丢掉
+        }
+        holder[0].request(Long.MAX_VALUE);
+        publisher.complete();
+    }
+
     public static void testJavaObservable(){
         OilFutures oil = new OilFutures();
         oil.addObserver(new Bull());
@@ -132,35 +535,186 @@ public class ObserverPattern {
         }
     }
 
+    //可复用的铃声事件：只有事件池能修改它，监听器调用setSound会抛出异常
+    static class PooledRingEvent extends RingEvent{
+        private static final long serialVersionUID = 1L;
+
+        PooledRingEvent(Object source){
+            super(source, false);
+        }
+
+        @Override
+        public void setSound(boolean sound) {
+            throw new UnsupportedOperationException("复用的铃声事件不能修改");
+        }
+
+        void reset(boolean sound){
+            super.setSound(sound);
+        }
+    }
+
+    //一个线程的铃声事件池：只在监听器中嵌套敲钟时才需要多于一个事件对象
+    static class RingEventPool{
+        private final Object source;
+        private PooledRingEvent[] free = new PooledRingEvent[4];
+        private int size;
+
+        RingEventPool(Object source){
+            this.source = source;
+        }
+
+        PooledRingEvent acquire(boolean sound){
+            PooledRingEvent event = size > 0 ? free[--size] : new PooledRingEvent(source);
+            free[size] = null;
+            event.reset(sound);
+            return event;
+        }
+
+        void release(PooledRingEvent event){
+            if(size == free.length){
+                free = Arrays.copyOf(free, size * 2);
+            }
+            free[size++] = event;
+        }
+    }
+
     //目标类：事件源，铃
     static class BellEventSource{
-        private List<BellEventListener> listeners;//监听器容器
+        //监听器容器：写时复制的数组，通知时遍历的是快照，不加锁也不创建迭代器，通知过程中也可以绑定或解绑监听器
+        private volatile BellEventListener[] listeners;
+        private volatile RingEventDispatcher dispatcher;//不为null时异步通知
+        private volatile DispatchMetrics metrics;//不为null且开启时统计通知，异步时回调耗时在监听器线程上记录
+        private volatile boolean eventPooling;//为true时同步通知复用事件对象
+        //每个敲钟线程一个事件池，同一线程在监听器中再次敲钟时取到的是另一个事件对象
+        private final ThreadLocal<RingEventPool> eventPools = new ThreadLocal<RingEventPool>(){
+            @Override
+            protected RingEventPool initialValue() {
+                return new RingEventPool(BellEventSource.this);
+            }
+        };
         public BellEventSource(){
-            listeners = new ArrayList<>();
+            listeners = new BellEventListener[0];
         }
 
         //给事件源绑定监听器
-        public void addPersonListener(BellEventListener listener){
-            listeners.add(listener);
+        public synchronized void addPersonListener(BellEventListener listener){
+            BellEventListener[] current = listeners;
+            BellEventListener[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = listener;
+            listeners = updated;
+        }
+
+        //解绑监听器
+        public synchronized void removePersonListener(BellEventListener listener){
+            BellEventListener[] current = listeners;
+            for (int i = 0; i < current.length; i++) {
+                if(current[i].equals(listener)){
+                    BellEventListener[] updated = new BellEventListener[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    listeners = updated;
+                    DispatchMetrics m = metrics;
+                    if(m != null){
+                        m.forget(listener);
+                    }
+                    return;
+                }
+            }
+        }
+
+        //设置同步通知时是否复用事件对象，复用时监听器不能在heardBell返回后继续持有事件
+        public void setEventPooling(boolean eventPooling){
+            this.eventPooling = eventPooling;
+        }
+
+        //开启异步通知：此时已绑定的每个监听器一个线程，之后绑定的监听器要等到下次开启时才生效；已开启时抛出异常
+        public synchronized void startAsync(int capacity, boolean multiProducer, WaitStrategy waitStrategy){
+            if(dispatcher != null){
+                throw new IllegalStateException("异步通知已开启，先调用stopAsync");
+            }
+            RingEventDispatcher created = new RingEventDispatcher(this, Arrays.asList(listeners), capacity,
+                    multiProducer, waitStrategy);
+            created.setMetrics(metrics);
+            created.start();
+            dispatcher = created;
+        }
+
+        //关闭异步通知，等已发出的铃声都处理完再返回；关闭期间敲钟的线程改为同步通知
+        public void stopAsync(){
+            RingEventDispatcher current;
+            synchronized (this){
+                current = dispatcher;
+                dispatcher = null;
+            }
+            if(current != null){
+                current.halt();
+            }
         }
 
         //事件触发器：敲钟，当铃声sound的值发生变化时，触发事件。
         public void ring(boolean sound){
             String type = sound?"上课铃":"下课铃";
             System.out.println(type+"响！");
+            fire(sound);
+        }
+
+        //产生铃声事件并通知监听器
+        void fire(boolean sound){
+            RingEventDispatcher current = dispatcher;
+            if(current != null){
+                DispatchMetrics m = metrics;
+                if(m == null || !m.isEnabled()){
+                    if(current.publish(sound)){//异步通知
+                        return;
+                    }
+                }else{
+                    long begin = System.nanoTime();
+                    if(current.publish(sound)){
+                        m.recordNotify(begin, listeners.length);//异步时通知耗时是发布到环形缓冲区的耗时
+                        return;
+                    }
+                }
+                //分发器正在关闭，不再接受事件，改为下面的同步通知
+            }
+            if(eventPooling){
+                RingEventPool pool = eventPools.get();
+                PooledRingEvent ringEvent = pool.acquire(sound);
+                try {
+                    notifies(ringEvent);
+                } finally {
+                    pool.release(ringEvent);//所有监听器都处理完了才回收
+                }
+                return;
+            }
             RingEvent ringEvent = new RingEvent(this, sound);
             notifies(ringEvent);//通知注册在该事件源上的所有监听器
         }
 
         //当事件发生时,通知绑定在该事件源上的所有监听器做出反应（调用事件处理方法）
         protected  void notifies(RingEvent e){
-            BellEventListener listener =null;
-            Iterator<BellEventListener> iterator = listeners.iterator();
-            while (iterator.hasNext()){
-                listener = iterator.next();
+            BellEventListener[] current = listeners;
+            DispatchMetrics m = metrics;
+            if(m == null || !m.isEnabled()){
+                for (BellEventListener listener : current) {
+                    listener.heardBell(e);
+                }
+                return;
+            }
+            long begin = System.nanoTime();
+            for (BellEventListener listener : current) {
+                long listenerBegin = System.nanoTime();
                 listener.heardBell(e);
+                m.recordListener(listener, listenerBegin);
             }
+            m.recordNotify(begin, current.length);
+        }
 
+        public void setMetrics(DispatchMetrics metrics){
+            this.metrics = metrics;
+            RingEventDispatcher current = dispatcher;
+            if(current != null){
+                current.setMetrics(metrics);
+            }
         }
 
     }
@@ -198,12 +752,213 @@ public class ObserverPattern {
     }
 
 
+    //异步通知时消费者和生产者没有事件可处理(或没有空位)时的等待策略
+    enum WaitStrategy{
+        BUSY_SPIN, //一直空转，延迟最低，但独占一个CPU
+        YIELD,     //让出CPU后再检查
+        PARK;      //休眠一小段时间后再检查，最省CPU，延迟最高
+
+        private static final long PARK_NANOS = 1000;
+
+        void idle(){
+            switch (this){
+                case YIELD:
+                    Thread.yield();
+                    break;
+                case PARK:
+                    LockSupport.parkNanos(PARK_NANOS);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    //环形缓冲区异步分发器：事件对象预先分配在环形缓冲区的槽位中，敲钟的线程只写入槽位就返回，
+    //每个监听器一个线程批量读取槽位并处理，慢的监听器不会拖住敲钟的线程（除非缓冲区写满）
+    static class RingEventDispatcher{
+        private final PooledRingEvent[] slots;//监听器只能读，只有生产者通过reset写入
+        private final AtomicIntegerArray available;//每个槽位已发布的圈数，用来判断序号是否已发布
+        private final int mask;
+        private final int shift;
+        private final boolean multiProducer;
+        private final WaitStrategy waitStrategy;
+        private final AtomicLong claimed = new AtomicLong(-1);//多生产者时分配的最大序号
+        private long nextSequence = -1;//单生产者时分配的最大序号，只有一个线程读写
+        private volatile long gatingCache = -1;//最慢的消费者已处理的序号，缓存起来减少扫描
+        private final Consumer[] consumers;
+        private final Thread[] threads;
+        private volatile boolean running = true;//为false时监听器线程处理完已发布的事件后退出
+        private volatile boolean accepting = true;//为false时publish不再发布事件
+        private final AtomicInteger publishing = new AtomicInteger();//正在执行publish的线程数
+        private volatile DispatchMetrics metrics;//不为null且开启时在监听器线程上统计回调耗时
+
+        //capacity必须是2的幂；multiProducer为false时只能有一个线程调用publish
+        RingEventDispatcher(Object source, List<BellEventListener> listeners, int capacity,
+                            boolean multiProducer, WaitStrategy waitStrategy){
+            if(capacity <= 0 || Integer.bitCount(capacity) != 1){
+                throw new IllegalArgumentException("容量必须是2的幂：" + capacity);
+            }
+            slots = new PooledRingEvent[capacity];
+            available = new AtomicIntegerArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new PooledRingEvent(source);
+                available.set(i, -1);
+            }
+            mask = capacity - 1;
+            shift = Integer.numberOfTrailingZeros(capacity);
+            this.multiProducer = multiProducer;
+            this.waitStrategy = waitStrategy;
+            consumers = new Consumer[listeners.size()];
+            threads = new Thread[listeners.size()];
+            for (int i = 0; i < consumers.length; i++) {
+                consumers[i] = new Consumer(listeners.get(i));
+                threads[i] = new Thread(consumers[i], "bell-listener-" + i);
+                threads[i].setDaemon(true);
+            }
+        }
+
+        void setMetrics(DispatchMetrics metrics){
+            this.metrics = metrics;
+        }
+
+        void start(){
+            for (Thread thread : threads) {
+                thread.start();
+            }
+        }
+
+        //发布事件：等到槽位被所有监听器处理过后再复用它；分发器正在关闭时不发布并返回false
+        public boolean publish(boolean sound){
+            publishing.incrementAndGet();
+            try {
+                if(!accepting){
+                    return false;
+                }
+                publishClaimed(sound);
+                return true;
+            } finally {
+                publishing.decrementAndGet();
+            }
+        }
+
+        private void publishClaimed(boolean sound){
+            long sequence = multiProducer ? claimed.incrementAndGet() : ++nextSequence;
+            long wrapPoint = sequence - slots.length;
+            if(wrapPoint > gatingCache){
+                long min;
+                while (wrapPoint > (min = minConsumerSequence())){
+                    if(!running){
+                        throw new IllegalStateException("监听器线程已退出");//halt保证不会发生，防止永远空转
+                    }
+                    waitStrategy.idle();
+                }
+                gatingCache = min;
+            }
+            int index = (int) sequence & mask;
+            slots[index].reset(sound);
+            available.lazySet(index, (int) (sequence >>> shift));
+        }
+
+        private boolean isAvailable(long sequence){
+            return available.get((int) sequence & mask) == (int) (sequence >>> shift);
+        }
+
+        private long minConsumerSequence(){
+            long min = Long.MAX_VALUE;
+            for (Consumer consumer : consumers) {
+                min = Math.min(min, consumer.sequence.get());
+            }
+            return min;
+        }
+
+        //停止分发：先不再接受新的事件，等正在发布的线程发布完(此时监听器线程还在消费，不会卡在缓冲区已满)，
+        //再让监听器线程处理完所有已发布的事件后退出
+        void halt(){
+            accepting = false;
+            while (publishing.get() != 0){
+                Thread.yield();
+            }
+            running = false;
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        //监听器线程：一次取出所有已发布的事件批量处理
+        class Consumer implements Runnable{
+            private final BellEventListener listener;
+            private final AtomicLong sequence = new AtomicLong(-1);
+
+            Consumer(BellEventListener listener){
+                this.listener = listener;
+            }
+
+            @Override
+            public void run() {
+                long next = 0;
+                while (true){
+                    if(isAvailable(next)){
+                        long last = next;
+                        while (isAvailable(last + 1)){
+                            last++;
+                        }
+                        DispatchMetrics m = metrics;
+                        boolean measure = m != null && m.isEnabled();
+                        for (long s = next; s <= last; s++) {
+                            long begin = measure ? System.nanoTime() : 0;
+                            try {
+                                listener.heardBell(slots[(int) s & mask]);
+                            } catch (RuntimeException e) {
+                                e.printStackTrace();//一个事件处理失败不影响后面的事件
+                            }
+                            if(measure){
+                                m.recordListener(listener, begin);
+                            }
+                        }
+                        sequence.lazySet(last);
+                        next = last + 1;
+                    }else if(!running){
+                        //看到停止标志之前可能又发布了事件，再检查一次，处理完才退出
+                        if(!isAvailable(next)){
+                            return;
+                        }
+                    }else{
+                        waitStrategy.idle();
+                    }
+                }
+            }
+        }
+    }
+
     //--------------------------------我是华丽的分割线-------------------------------------------
 
 
     //抽象目标：汇率
     static abstract class Rate{
         protected List<Company> companys = new ArrayList<>();
+        protected volatile DispatchMetrics metrics;//不为null且开启时统计通知
+
+        public void setMetrics(DispatchMetrics metrics){
+            this.metrics = metrics;
+        }
+
+        //通知一个公司，开启统计时记录它的回调耗时；在线程池中通知公司的子类也用它，统计在执行通知的线程上记录
+        protected void respond(Company company, int numer){
+            DispatchMetrics m = metrics;
+            if(m == null || !m.isEnabled()){
+                company.response(numer);
+                return;
+            }
+            long begin = System.nanoTime();
+            company.response(numer);
+            m.recordListener(company, begin);
+        }
 
         //增加观察者方法
         public void add(Company company){
@@ -213,6 +968,15 @@ public class ObserverPattern {
         //删除观察者方法
         public void remove(Company company){
             companys.remove(company);
+            forgetStats(company);
+        }
+
+        //删除公司后丢掉它的回调统计，统计不再持有已删除的公司
+        protected void forgetStats(Company company){
+            DispatchMetrics m = metrics;
+            if(m != null){
+                m.forget(company);
+            }
         }
 
         public abstract void change(int numer);
@@ -224,8 +988,527 @@ public class ObserverPattern {
 
         @Override
         public void change(int numer) {
+            DispatchMetrics m = metrics;
+            boolean measure = m != null && m.isEnabled();
+            long begin = measure ? System.nanoTime() : 0;
             for (Company company : companys) {
-                company.response(numer);
+                respond(company, numer);
+            }
+            if(measure){
+                m.recordNotify(begin, companys.size());
+            }
+        }
+    }
+
+    //合并通知的方式
+    enum ConflationMode{
+        LATEST, //只通知最新的汇率变化
+        MERGE   //把尚未通知的变化基点累加后一起通知
+    }
+
+    //具体目标：合并通知的人民币汇率
+    //每个公司最多只有一个待通知的变化，公司处理完上一次通知后才收到合并后的下一次通知，
+    //汇率变化的速度不受最慢的公司影响
+    static class ConflatingRMBrate extends Rate{
+        private final List<ConflatingSlot> slots = new CopyOnWriteArrayList<>();
+        private final Executor executor;
+        private final ConflationMode mode;
+
+        ConflatingRMBrate(Executor executor, ConflationMode mode){
+            this.executor = executor;
+            this.mode = mode;
+        }
+
+        @Override
+        public void add(Company company) {
+            slots.add(new ConflatingSlot(this, company, executor, mode));
+        }
+
+        @Override
+        public void remove(Company company) {
+            for (ConflatingSlot slot : slots) {
+                if(slot.company.equals(company)){
+                    slots.remove(slot);
+                    forgetStats(company);
+                    return;
+                }
+            }
+        }
+
+        //统计的通知耗时只是放进槽位的耗时，每个公司的回调耗时在线程池中记录
+        @Override
+        public void change(int numer) {
+            DispatchMetrics m = metrics;
+            long begin = m != null && m.isEnabled() ? System.nanoTime() : 0;
+            for (ConflatingSlot slot : slots) {
+                slot.offer(numer);
+            }
+            if(begin != 0){
+                m.recordNotify(begin, slots.size());
+            }
+        }
+
+        public void printStats(){
+            for (ConflatingSlot slot : slots) {
+                String name = slot.company.getClass().getSimpleName();
+                System.out.println((name.isEmpty() ? slot.company.getClass().getName() : name)
+                        + " 收到通知:" + slot.delivered.get() + "次 被合并:" + slot.conflated.get() + "次");
+            }
+        }
+    }
+
+    //一个公司的待通知槽位：只保存一个待通知的值，有值时最多只有一个通知任务在执行
+    static class ConflatingSlot implements Runnable{
+        private final Rate rate;
+        private final Company company;
+        private final Executor executor;
+        private final ConflationMode mode;
+        //待通知的值和它合并了几次变化打包在一起：高32位是变化次数，低32位是值，0表示没有待通知的值；
+        //通知时用getAndSet(0)一次取走，每个值最多通知一次
+        private final AtomicLong state = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();//上次通知后又发生的变化次数，0表示空闲
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong conflated = new AtomicLong();
+
+        ConflatingSlot(Rate rate, Company company, Executor executor, ConflationMode mode){
+            this.rate = rate;
+            this.company = company;
+            this.executor = executor;
+            this.mode = mode;
+        }
+
+        void offer(int number){
+            while (true){
+                long current = state.get();
+                int changes = (int) (current >>> 32) + 1;
+                int merged = mode == ConflationMode.MERGE ? (int) current + number : number;
+                if(state.compareAndSet(current, ((long) changes << 32) | (merged & 0xFFFFFFFFL))){
+                    break;
+                }
+            }
+            if(pending.getAndIncrement() == 0){
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true){
+                int seen = pending.get();
+                long taken = state.getAndSet(0);
+                int changes = (int) (taken >>> 32);
+                int number = (int) taken;
+                if(changes > 0){
+                    if(mode == ConflationMode.MERGE && number == 0){
+                        conflated.addAndGet(changes);//累加后为0，不需要通知
+                    }else{
+                        try {
+                            rate.respond(company, number);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                        delivered.incrementAndGet();
+                        conflated.addAndGet(changes - 1);
+                    }
+                }
+                if(pending.compareAndSet(seen, 0)){
+                    return;//通知期间没有新的变化
+                }
+            }
+        }
+    }
+
+    //并行通知中慢的或出错的公司的报告
+    interface FanOutListener{
+        void onSlow(Company company, long elapsedMillis, boolean cancelled);
+        void onFailed(Company company, Throwable throwable);
+    }
+
+    //具体目标：并行通知的人民币汇率
+    //每个公司在线程池中各自执行，总耗时约等于最慢的一个公司，而不是所有公司耗时之和；
+    //每个公司都有处理期限，超过期限的和出错的公司会报告给FanOutListener
+    static class ParallelRMBrate extends Rate{
+        //不等待时由这个共享的守护线程执行检查期限的任务
+        private static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "rate-fan-out-timeout");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        private final ExecutorService executor;
+        private final long timeoutMillis;
+        private final boolean waitForAll;
+        private final FanOutListener listener;
+        //不等待时还没检查过期限的任务；所有任务的期限一样长，所以队列按期限排序，只需要检查队头
+        private final ConcurrentLinkedQueue<ObserverTask> watching = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean sweeping = new AtomicBoolean();//检查期限的任务是否已安排
+        private final Runnable sweeper = new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        };
+
+        //waitForAll为true时change等待所有公司处理完或超过期限，超过期限的取消；
+        //为false时change提交后立即返回，期限到达时还没处理完的公司同样会被取消并报告
+        ParallelRMBrate(ExecutorService executor, long timeoutMillis, boolean waitForAll, FanOutListener listener){
+            this.executor = executor;
+            this.timeoutMillis = timeoutMillis;
+            this.waitForAll = waitForAll;
+            this.listener = listener;
+        }
+
+        //统计的通知耗时：等待时是等到所有公司处理完或超过期限的耗时，不等待时是提交的耗时；
+        //每个公司的回调耗时在线程池中记录
+        @Override
+        public void change(int numer) {
+            DispatchMetrics m = metrics;
+            if(m == null || !m.isEnabled()){
+                fanOut(numer);
+                return;
+            }
+            long begin = System.nanoTime();
+            fanOut(numer);
+            m.recordNotify(begin, companys.size());
+        }
+
+        private void fanOut(int numer) {
+            long start = System.nanoTime();//期限和耗时都从这里算起
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            List<ObserverTask> tasks = new ArrayList<>(companys.size());
+            for (Company company : companys) {
+                ObserverTask task = new ObserverTask(company, numer, start, deadline);
+                task.future = executor.submit(task);
+                tasks.add(task);
+            }
+            if(!waitForAll){
+                watching.addAll(tasks);
+                if(sweeping.compareAndSet(false, true)){
+                    TIMEOUTS.schedule(sweeper, timeoutMillis, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            for (ObserverTask task : tasks) {
+                long remaining = deadline - System.nanoTime();
+                try {
+                    task.future.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    task.cancel();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException | CancellationException e) {
+                    //ObserverTask自己已经报告过了
+                }
+            }
+        }
+
+        //从队头开始取消已到期还没处理完的任务，丢掉已处理完的任务，遇到没到期的任务就安排下一次检查；
+        //队列里只有最近一个期限内发出的任务，不会无限增长
+        private void sweep(){
+            while (true){
+                ObserverTask task = watching.peek();
+                if(task == null){
+                    sweeping.set(false);
+                    if(watching.isEmpty() || !sweeping.compareAndSet(false, true)){
+                        return;//队列为空，或者新加入任务的线程已经安排了检查
+                    }
+                    continue;
+                }
+                if(!task.future.isDone()){
+                    long remaining = task.deadline - System.nanoTime();
+                    if(remaining > 0){
+                        TIMEOUTS.schedule(sweeper, remaining, TimeUnit.NANOSECONDS);
+                        return;
+                    }
+                    task.cancel();
+                }
+                watching.poll();
+            }
+        }
+
+        //通知一个公司，并在完成后检查是否超过期限
+        class ObserverTask implements Runnable{
+            private final Company company;
+            private final int number;
+            private final long start;
+            private final long deadline;
+            private final AtomicBoolean reported = new AtomicBoolean();
+            private volatile Future<?> future;
+
+            ObserverTask(Company company, int number, long start, long deadline){
+                this.company = company;
+                this.number = number;
+                this.start = start;
+                this.deadline = deadline;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    respond(company, number);
+                } catch (RuntimeException e) {
+                    if(reported.compareAndSet(false, true)){
+                        listener.onFailed(company, e);
+                    }
+                    return;
+                }
+                if(System.nanoTime() > deadline){
+                    reportSlow(false);
+                }
+            }
+
+            //超过期限还没处理完：先报告再取消，否则被中断的公司可能先报告成没有取消
+            void cancel(){
+                reportSlow(true);
+                future.cancel(true);
+            }
+
+            void reportSlow(boolean cancelled){
+                if(reported.compareAndSet(false, true)){
+                    listener.onSlow(company, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), cancelled);
+                }
+            }
+        }
+    }
+
+    //汇率变化的过滤条件，不能用范围表示时使用
+    interface RatePredicate{
+        boolean test(int number);
+    }
+
+    //具体目标：按订阅范围通知的人民币汇率
+    //公司订阅时声明关心的基点范围，汇率按范围建立索引，变化时只通知范围内的公司，
+    //通知的开销只与匹配的公司数有关；用条件订阅的公司无法建立索引，每次变化都要检查
+    static class IndexedRMBrate extends Rate{
+        private static final int MIN_PENDING = 32;
+
+        private final List<RangeSubscription> ranges = new ArrayList<>();//由this加锁保护
+        private final List<PredicateSubscription> predicates = new ArrayList<>();//由this加锁保护
+        private volatile Snapshot snapshot = new Snapshot(RangeIndex.build(ranges), new RangeSubscription[0],
+                new PredicateSubscription[0]);
+
+        //不声明范围时关心所有变化
+        @Override
+        public void add(Company company) {
+            subscribe(company, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
+        //删除公司的所有订阅
+        @Override
+        public synchronized void remove(Company company) {
+            Iterator<RangeSubscription> rangeIterator = ranges.iterator();
+            while (rangeIterator.hasNext()){
+                if(rangeIterator.next().company.equals(company)){
+                    rangeIterator.remove();
+                }
+            }
+            Iterator<PredicateSubscription> predicateIterator = predicates.iterator();
+            while (predicateIterator.hasNext()){
+                if(predicateIterator.next().company.equals(company)){
+                    predicateIterator.remove();
+                }
+            }
+            snapshot = new Snapshot(RangeIndex.build(ranges), new RangeSubscription[0], predicateArray());
+            forgetStats(company);
+        }
+
+        //订阅[min,max]范围内的汇率变化
+        //新的范围先放在待建索引的数组里，攒到索引大小的1/8才重建索引，每次订阅分摊的建索引开销是O(log² R)
+        public synchronized void subscribe(Company company, int min, int max){
+            if(min > max){
+                throw new IllegalArgumentException("范围的下限不能大于上限：" + min + ">" + max);
+            }
+            RangeSubscription subscription = new RangeSubscription(company, min, max);
+            ranges.add(subscription);
+            Snapshot current = snapshot;
+            RangeSubscription[] pending = Arrays.copyOf(current.pending, current.pending.length + 1);
+            pending[current.pending.length] = subscription;
+            if(pending.length > Math.max(MIN_PENDING, ranges.size() / 8)){
+                snapshot = new Snapshot(RangeIndex.build(ranges), new RangeSubscription[0], current.predicates);
+            }else{
+                snapshot = new Snapshot(current.index, pending, current.predicates);
+            }
+        }
+
+        //订阅满足条件的汇率变化
+        public synchronized void subscribe(Company company, RatePredicate predicate){
+            predicates.add(new PredicateSubscription(company, predicate));
+            Snapshot current = snapshot;
+            snapshot = new Snapshot(current.index, current.pending, predicateArray());
+        }
+
+        private PredicateSubscription[] predicateArray(){
+            return predicates.toArray(new PredicateSubscription[predicates.size()]);
+        }
+
+        @Override
+        public void change(int numer) {
+            DispatchMetrics m = metrics;
+            long begin = m != null && m.isEnabled() ? System.nanoTime() : 0;
+            Snapshot current = snapshot;
+            int notified = current.index.dispatch(numer, this);
+            for (RangeSubscription subscription : current.pending) {
+                if(subscription.min <= numer && numer <= subscription.max){
+                    respond(subscription.company, numer);
+                    notified++;
+                }
+            }
+            for (PredicateSubscription subscription : current.predicates) {
+                if(subscription.predicate.test(numer)){
+                    respond(subscription.company, numer);
+                    notified++;
+                }
+            }
+            if(begin != 0){
+                m.recordNotify(begin, notified);//监听器数是这次实际通知的公司数
+            }
+        }
+
+        //索引、还没建进索引的范围和条件订阅一起发布，通知时不会漏掉或重复通知正在重建索引的订阅
+        static class Snapshot{
+            final RangeIndex index;
+            final RangeSubscription[] pending;
+            final PredicateSubscription[] predicates;
+
+            Snapshot(RangeIndex index, RangeSubscription[] pending, PredicateSubscription[] predicates){
+                this.index = index;
+                this.pending = pending;
+                this.predicates = predicates;
+            }
+        }
+    }
+
+    static class RangeSubscription{
+        final Company company;
+        final int min;
+        final int max;
+
+        RangeSubscription(Company company, int min, int max){
+            this.company = company;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    static class PredicateSubscription{
+        final Company company;
+        final RatePredicate predicate;
+
+        PredicateSubscription(Company company, RatePredicate predicate){
+            this.company = company;
+            this.predicate = predicate;
+        }
+    }
+
+    //范围索引：中心区间树，每个节点保存跨过中心点的范围，分别按下限升序和上限降序排列，中心点左右两边的范围
+    //放进左右子树；查找时从根往下只走一条路径，每个节点上只访问命中的范围，建树O(R log² R)，占用O(R)
+    static class RangeIndex{
+        private static final Comparator<RangeSubscription> BY_MIN = new Comparator<RangeSubscription>() {
+            @Override
+            public int compare(RangeSubscription a, RangeSubscription b) {
+                return a.min < b.min ? -1 : (a.min == b.min ? 0 : 1);
+            }
+        };
+        private static final Comparator<RangeSubscription> BY_MAX_DESC = new Comparator<RangeSubscription>() {
+            @Override
+            public int compare(RangeSubscription a, RangeSubscription b) {
+                return a.max > b.max ? -1 : (a.max == b.max ? 0 : 1);
+            }
+        };
+
+        private final Node root;
+
+        private RangeIndex(Node root){
+            this.root = root;
+        }
+
+        static RangeIndex build(List<RangeSubscription> ranges){
+            return new RangeIndex(buildNode(ranges.toArray(new RangeSubscription[ranges.size()])));
+        }
+
+        private static Node buildNode(RangeSubscription[] ranges){
+            if(ranges.length == 0){
+                return null;
+            }
+            int[] endpoints = new int[ranges.length * 2];
+            for (int i = 0; i < ranges.length; i++) {
+                endpoints[2 * i] = ranges[i].min;
+                endpoints[2 * i + 1] = ranges[i].max;
+            }
+            Arrays.sort(endpoints);
+            int center = endpoints[ranges.length];//端点的中位数，左右子树的范围数都不超过一半
+            List<RangeSubscription> left = new ArrayList<>();
+            List<RangeSubscription> right = new ArrayList<>();
+            List<RangeSubscription> crossing = new ArrayList<>();
+            for (RangeSubscription range : ranges) {
+                if(range.max < center){
+                    left.add(range);
+                }else if(range.min > center){
+                    right.add(range);
+                }else{
+                    crossing.add(range);
+                }
+            }
+            RangeSubscription[] byMin = crossing.toArray(new RangeSubscription[crossing.size()]);
+            RangeSubscription[] byMax = byMin.clone();
+            Arrays.sort(byMin, BY_MIN);
+            Arrays.sort(byMax, BY_MAX_DESC);
+            return new Node(center, byMin, byMax,
+                    buildNode(left.toArray(new RangeSubscription[left.size()])),
+                    buildNode(right.toArray(new RangeSubscription[right.size()])));
+        }
+
+        //通知包含number的所有范围，返回通知的公司数
+        int dispatch(int number, Rate rate){
+            int notified = 0;
+            Node node = root;
+            while (node != null){
+                if(number < node.center){
+                    for (RangeSubscription range : node.byMin) {
+                        if(range.min > number){
+                            break;
+                        }
+                        rate.respond(range.company, number);
+                        notified++;
+                    }
+                    node = node.left;
+                }else if(number > node.center){
+                    for (RangeSubscription range : node.byMax) {
+                        if(range.max < number){
+                            break;
+                        }
+                        rate.respond(range.company, number);
+                        notified++;
+                    }
+                    node = node.right;
+                }else{
+                    for (RangeSubscription range : node.byMin) {
+                        rate.respond(range.company, number);
+                    }
+                    return notified + node.byMin.length;
+                }
+            }
+            return notified;
+        }
+
+        static class Node{
+            final int center;
+            final RangeSubscription[] byMin;
+            final RangeSubscription[] byMax;
+            final Node left;
+            final Node right;
+
+            Node(int center, RangeSubscription[] byMin, RangeSubscription[] byMax, Node left, Node right){
+                this.center = center;
+                this.byMin = byMin;
+                this.byMax = byMax;
+                this.left = left;
+                this.right = right;
             }
         }
     }
@@ -266,24 +1549,115 @@ public class ObserverPattern {
     //具体目标类：原油期货
     static class OilFutures extends Observable{
         private float price;
+        private volatile DispatchMetrics metrics;//Observable内部逐个通知，只能统计整次通知的耗时
+
+        public void setMetrics(DispatchMetrics metrics){
+            this.metrics = metrics;
+        }
 
         public float getPrice() {
             return price;
         }
 
         public void setPrice(float price) {
+            DispatchMetrics m = metrics;
+            long begin = m != null && m.isEnabled() ? System.nanoTime() : 0;
             super.setChanged();//设置内部标志位，注明数据发生变化
             super.notifyObservers(price); //通知观察者价格改变了
             this.price = price;
+            if(begin != 0){
+                m.recordNotify(begin, countObservers());
+            }
+        }
+    }
+
+    //抽象观察者：价格监听器，直接接收float价格，不需要装箱和拆箱
+    interface PriceListener{
+        void onPrice(float price);
+    }
+
+    //具体目标类：原油价格行情，替代Observable的类型化版本
+    //订阅和退订用CAS替换监听器数组，不加锁；发布时遍历数组快照，不装箱也不加锁
+    static class OilPriceFeed{
+        private final AtomicReference<PriceListener[]> listeners = new AtomicReference<>(new PriceListener[0]);
+        private volatile float price;
+        private volatile DispatchMetrics metrics;//不为null且开启时统计通知
+
+        public void subscribe(PriceListener listener){
+            while (true){
+                PriceListener[] current = listeners.get();
+                PriceListener[] updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = listener;
+                if(listeners.compareAndSet(current, updated)){
+                    return;
+                }
+            }
+        }
+
+        public void unsubscribe(PriceListener listener){
+            while (true){
+                PriceListener[] current = listeners.get();
+                int index = -1;
+                for (int i = 0; i < current.length; i++) {
+                    if(current[i].equals(listener)){
+                        index = i;
+                        break;
+                    }
+                }
+                if(index < 0){
+                    return;
+                }
+                PriceListener[] updated = new PriceListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+                if(listeners.compareAndSet(current, updated)){
+                    DispatchMetrics m = metrics;
+                    if(m != null){
+                        m.forget(listener);
+                    }
+                    return;
+                }
+            }
+        }
+
+        public float getPrice() {
+            return price;
+        }
+
+        public void setPrice(float price) {
+            this.price = price;
+            PriceListener[] current = listeners.get();
+            DispatchMetrics m = metrics;
+            if(m == null || !m.isEnabled()){
+                for (PriceListener listener : current) {
+                    listener.onPrice(price);
+                }
+                return;
+            }
+            long begin = System.nanoTime();
+            for (PriceListener listener : current) {
+                long listenerBegin = System.nanoTime();
+                listener.onPrice(price);
+                m.recordListener(listener, listenerBegin);
+            }
+            m.recordNotify(begin, current.length);
+        }
+
+        public void setMetrics(DispatchMetrics metrics){
+            this.metrics = metrics;
         }
     }
 
     //具体观察者类：多方
-    static class Bull implements Observer{
+    static class Bull implements Observer, PriceListener{
 
         @Override
         public void update(Observable o, Object arg) {
-            float price = ((Float) arg).floatValue();
+            onPrice(((Float) arg).floatValue());
+        }
+
+        @Override
+        public void onPrice(float price) {
             if (price>0) {
                 System.out.println("油价上涨"+price+"元，多方高兴了！");
             }else{
@@ -294,11 +1668,15 @@ public class ObserverPattern {
     }
 
     //具体观察者类：空方
-    static class Bear implements Observer{
+    static class Bear implements Observer, PriceListener{
 
         @Override
         public void update(Observable o, Object arg) {
-            Float price=((Float)arg).floatValue();
+            onPrice(((Float)arg).floatValue());
+        }
+
+        @Override
+        public void onPrice(float price) {
             if(price>0)
             {
                 System.out.println("油价上涨"+price+"元，空方伤心了！");
@@ -310,7 +1688,370 @@ public class ObserverPattern {
         }
     }
 
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //响应式流的发布者、订阅者和订阅关系，与java.util.concurrent.Flow中的接口含义相同（Flow需要API 30）
+    interface Publisher<T>{
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    interface Subscriber<T>{
+        void onSubscribe(Subscription subscription);
+        void onNext(T item);
+        void onError(Throwable throwable);
+        void onComplete();
+    }
+
+    interface Subscription{
+        void request(long n);
+        void cancel();
+    }
+
+    //订阅者来不及处理、缓冲区已满时的处理方式
+    enum OverflowPolicy{
+        DROP_OLDEST, //丢掉最早的一个
+        DROP_NEWEST, //丢掉新来的
+        BUFFER,      //让发布的线程等待，直到缓冲区有空位（发送不能和发布在同一个线程上）
+        ERROR        //通知订阅者出错并取消订阅
+    }
+
+    //把目标适配成发布者：每个订阅者一个有界缓冲区，只按订阅者request的数量在指定的线程池中发送
+    static class SubjectPublisher<T> implements Publisher<T>{
+        private final List<BufferedSubscription<T>> subscriptions = new CopyOnWriteArrayList<>();
+        private final Executor executor;
+        private final OverflowPolicy policy;
+        private final int capacity;
+        private volatile boolean completed;
+
+        SubjectPublisher(Executor executor, OverflowPolicy policy, int capacity){
+            this.executor = executor;
+            this.policy = policy;
+            this.capacity = capacity;
+        }
 
+        //把汇率适配成发布者
+        static SubjectPublisher<Integer> fromRate(Rate rate, Executor executor, OverflowPolicy policy, int capacity){
+            final SubjectPublisher<Integer> publisher = new SubjectPublisher<>(executor, policy, capacity);
+            rate.add(new Company() {
+                @Override
+                public void response(int number) {
+                    publisher.offer(number);
+                }
+            });
+            return publisher;
+        }
+
+        //把原油期货适配成发布者
+        static SubjectPublisher<Float> fromOilFutures(OilFutures oil, Executor executor, OverflowPolicy policy, int capacity){
+            final SubjectPublisher<Float> publisher = new SubjectPublisher<>(executor, policy, capacity);
+            oil.addObserver(new Observer() {
+                @Override
+                public void update(Observable o, Object arg) {
+                    publisher.offer((Float) arg);
+                }
+            });
+            return publisher;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super T> subscriber) {
+            BufferedSubscription<T> subscription = new BufferedSubscription<>(this, subscriber);
+            subscriptions.add(subscription);
+            subscription.schedule();
+        }
+
+        //目标发生变化时调用，把数据放进每个订阅者的缓冲区
+        public void offer(T item){
+            for (BufferedSubscription<T> subscription : subscriptions) {
+                subscription.enqueue(item);
+            }
+        }
+
+        //不再有新数据，缓冲区发送完后通知订阅者结束
+        public void complete(){
+            completed = true;
+            for (BufferedSubscription<T> subscription : subscriptions) {
+                subscription.schedule();
+            }
+        }
+    }
+
+    //一个订阅者的订阅关系：发送由一个任务串行执行，同一时刻只有一个线程调用订阅者
+    static class BufferedSubscription<T> implements Subscription, Runnable{
+        private final SubjectPublisher<T> publisher;
+        private final Subscriber<? super T> subscriber;
+        private final ArrayDeque<T> buffer = new ArrayDeque<>();//由this加锁保护
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile Throwable error;
+        private volatile boolean cancelled;
+        private boolean subscribed;//只在发送任务中读写
+
+        BufferedSubscription(SubjectPublisher<T> publisher, Subscriber<? super T> subscriber){
+            this.publisher = publisher;
+            this.subscriber = subscriber;
+        }
+
+        void enqueue(T item){
+            if(cancelled){
+                return;
+            }
+            synchronized (this){
+                if(buffer.size() >= publisher.capacity){
+                    switch (publisher.policy){
+                        case DROP_OLDEST:
+                            buffer.poll();
+                            dropped.incrementAndGet();
+                            break;
+                        case DROP_NEWEST:
+                            dropped.incrementAndGet();
+                            return;
+                        case ERROR:
+                            error = new IllegalStateException("订阅者处理不过来，缓冲区已满：" + publisher.capacity);
+                            schedule();
+                            return;
+                        default:
+                            boolean interrupted = false;
+                            while (buffer.size() >= publisher.capacity && !cancelled){
+                                try {
+                                    wait();
+                                } catch (InterruptedException e) {
+                                    interrupted = true;
+                                }
+                            }
+                            if(interrupted){
+                                Thread.currentThread().interrupt();
+                            }
+                            if(cancelled){
+                                return;
+                            }
+                            break;
+                    }
+                }
+                buffer.offer(item);
+            }
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0){
+                error = new IllegalArgumentException("request的数量必须大于0：" + n);
+            }else{
+                long current;
+                long updated;
+                do {
+                    current = demand.get();
+                    updated = current + n < 0 ? Long.MAX_VALUE : current + n;//溢出时视为无限
+                } while (!demand.compareAndSet(current, updated));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            publisher.subscriptions.remove(this);
+            synchronized (this){
+                buffer.clear();
+                notifyAll();//唤醒等待缓冲区空位的发布线程
+            }
+        }
+
+        void schedule(){
+            if(wip.getAndIncrement() == 0){
+                publisher.executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if(!subscribed){
+                    subscribed = true;
+                    subscriber.onSubscribe(this);
+                }
+                while (!cancelled){
+                    Throwable failure = error;
+                    if(failure != null){
+                        cancel();
+                        subscriber.onError(failure);
+                        break;
+                    }
+                    T item = null;
+                    boolean empty;
+                    if(demand.get() > 0){
+                        synchronized (this){
+                            item = buffer.poll();
+                            if(item != null){
+                                notifyAll();
+                            }
+                        }
+                    }
+                    if(item == null){
+                        synchronized (this){
+                            empty = buffer.isEmpty();
+                        }
+                        if(empty && publisher.completed){
+                            cancel();
+                            subscriber.onComplete();
+                        }
+                        break;
+                    }
+                    if(demand.get() != Long.MAX_VALUE){
+                        demand.decrementAndGet();
+                    }
+                    subscriber.onNext(item);
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        public long getDropped(){
+            return dropped.get();
+        }
+    }
+
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //通知的统计：通知耗时直方图、每个监听器的回调耗时、监听器数量和每秒事件数
+    //关闭时通知路径上只多读一次volatile字段；开启时只做原子计数，不加锁
+    static class DispatchMetrics{
+        private static final int BUCKETS = 64;//第i个桶统计[2^i, 2^(i+1))纳秒的通知
+
+        private volatile boolean enabled;
+        private volatile long startNanos = System.nanoTime();
+        private volatile int listenerCount;
+        private final AtomicLongArray notifyHistogram = new AtomicLongArray(BUCKETS);
+        private final AtomicLong events = new AtomicLong();
+        private final AtomicLong totalNotifyNanos = new AtomicLong();
+        private final ConcurrentHashMap<Object, ListenerStats> listenerStats = new ConcurrentHashMap<>();
+
+        public boolean isEnabled(){
+            return enabled;
+        }
+
+        //运行时开启或关闭统计，开启时从零开始统计
+        public void setEnabled(boolean enabled){
+            if(enabled && !this.enabled){
+                reset();
+            }
+            this.enabled = enabled;
+        }
+
+        public void reset(){
+            for (int i = 0; i < BUCKETS; i++) {
+                notifyHistogram.set(i, 0);
+            }
+            events.set(0);
+            totalNotifyNanos.set(0);
+            listenerStats.clear();
+            startNanos = System.nanoTime();
+        }
+
+        //记录一个监听器的回调耗时，begin是回调开始时的System.nanoTime()
+        void recordListener(Object listener, long begin){
+            long nanos = System.nanoTime() - begin;
+            ListenerStats stats = listenerStats.get(listener);
+            if(stats == null){
+                ListenerStats created = new ListenerStats(listener);
+                stats = listenerStats.putIfAbsent(listener, created);
+                if(stats == null){
+                    stats = created;
+                }
+            }
+            stats.record(nanos);
+        }
+
+        //监听器解绑后丢掉它的统计
+        void forget(Object listener){
+            listenerStats.remove(listener);
+        }
+
+        //记录一次通知的总耗时，begin是通知开始时的System.nanoTime()
+        void recordNotify(long begin, int listenerCount){
+            long nanos = System.nanoTime() - begin;
+            notifyHistogram.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+            totalNotifyNanos.addAndGet(nanos);
+            events.incrementAndGet();
+            this.listenerCount = listenerCount;
+        }
+
+        //通知耗时的百分位数(纳秒)，取所在桶的上界，percentile取0~100
+        public long getNotifyPercentile(double percentile){
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = notifyHistogram.get(i);
+                total += counts[i];
+            }
+            if(total == 0){
+                return 0;
+            }
+            long target = (long) Math.ceil(percentile / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if(seen >= Math.max(1, target)){
+                    return i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        public double getEventsPerSecond(){
+            long nanos = System.nanoTime() - startNanos;
+            return nanos <= 0 ? 0 : events.get() * 1e9 / nanos;
+        }
+
+        //打印统计结果，监听器按回调总耗时从大到小排列，最前面的就是最费时的监听器
+        public void printStats(){
+            long count = events.get();
+            System.out.println("通知次数:" + count
+                    + " 每秒:" + (long) getEventsPerSecond()
+                    + " 监听器数:" + listenerCount
+                    + " 平均耗时:" + (count == 0 ? 0 : totalNotifyNanos.get() / count) + "ns"
+                    + " p50:" + getNotifyPercentile(50) + "ns"
+                    + " p99:" + getNotifyPercentile(99) + "ns");
+            List<ListenerStats> list = new ArrayList<>(listenerStats.values());
+            Collections.sort(list, new Comparator<ListenerStats>() {
+                @Override
+                public int compare(ListenerStats o1, ListenerStats o2) {
+                    return Long.compare(o2.totalNanos.get(), o1.totalNanos.get());
+                }
+            });
+            for (ListenerStats stats : list) {
+                long calls = stats.count.get();
+                System.out.println("  " + stats.listener.getClass().getName()
+                        + " 回调:" + calls + "次"
+                        + " 平均:" + (calls == 0 ? 0 : stats.totalNanos.get() / calls) + "ns"
+                        + " 最长:" + stats.maxNanos.get() + "ns");
+            }
+        }
+    }
+
+    //一个监听器的回调耗时统计
+    static class ListenerStats{
+        private final Object listener;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        ListenerStats(Object listener){
+            this.listener = listener;
+        }
+
+        void record(long nanos){
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)){
+                //别的线程同时更新了最大值，重新比较
+            }
+        }
+    }
 
 
 }
@@ -1,5 +1,40 @@
 package com.xiaozi.designpatterntestdemo.pattern;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * @author : Sun
  * @version : 1.0
@@ -49,6 +84,26 @@ package com.xiaozi.designpatterntestdemo.pattern;
  * 1.真实主题与代理主题一一对应，增加真实主题也要增加代理。
  * 2.设计代理以前真实主题必须事先存在，不太灵活。采用动态代理模式可以解决以上问题。
  *
+ * 【例2】虚拟代理。
+ * 分析：如果代理公司在创建时就创建特产公司，即使从来不调用 display() 也要付出创建真实主题的代价。例1中的代理公司
+ * （ProxyCompany）同时也是虚拟代理，第一次 display() 时才创建真实主题，用 CAS 发布，不加锁；也可以在后台线程中提前创建。
+ * 【例3】缓存代理。
+ * 分析：查询特产介绍（SpecialtyCatalog）很慢，缓存代理（CachingCatalogProxy）按参数缓存查询结果。容量满时淘汰最久
+ * 没有访问的结果，结果超过存活时间后重新查询，超过刷新时间后先返回旧结果再在后台刷新；多个线程同时查询同一个
+ * 名称时只查询一次，并统计命中、未命中和淘汰次数。
+ * 【例4】动态代理与拦截器。
+ * 分析：例1中的 preRequest()/postRequest() 是写死在代理类里的。代理工厂（ProxyFactory）可以为任意接口生成代理，
+ * 附加的处理写成拦截器（计时、缓存、重试、限流）串成一条链。每个接口的代理类只生成一次，没有拦截器时直接调用
+ * 真实主题，调用开销可以和手写代理、java.lang.reflect.Proxy 做基准对比。
+ * 【例5】远程代理。
+ * 分析：特产公司运行在服务端（SpecialtyServer），客户端通过远程代理（RemoteSpecialty）调用 display()。代理和服务端
+ * 之间只用一个连接，基于 NIO 和直接缓冲区；代理不等响应就能发出下一个调用，响应按编号对应到调用，排队的小请求
+ * 合并成一次写出。在本机回环地址上就能测试，并对比逐个调用和流水线调用的吞吐量。
+ * 【例6】保护代理。
+ * 分析：保护代理（ProtectionProxyCompany）在 preRequest() 中先用信号量限制同时进入特产公司的调用数，再用令牌桶限流
+ * （被限流的调用会归还信号量，被舱壁拒绝的调用不消耗令牌），超出的调用立即抛出 RejectedExecutionException，而不是
+ * 排队压垮真实主题；并统计放行、拒绝次数和最大并发数。
+ *
  */
 public class ProxyPattern {
 
@@ -57,6 +112,220 @@ public class ProxyPattern {
         proxyCompany.display();
     }
 
+    public static void testCachingProxy(){
+        SpecialtyCatalogCompany catalog = new SpecialtyCatalogCompany();
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        final CachingCatalogProxy proxy = new CachingCatalogProxy(catalog, 100, 60000, 30000, direct);
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {//4个线程同时查询同一种特产，只查询一次
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    proxy.describe("婺源绿茶");
+                    done.countDown();
+                }
+            }).start();
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println(proxy.describe("婺源绿茶"));
+        System.out.println("真实查询次数：" + catalog.getQueries());
+        proxy.printStats();
+    }
+
+    public static void testInterceptorProxy(){
+        Specialty specialty = ProxyFactory.create(Specialty.class, new SpecialtyCompany(), new Interceptor() {
+            @Override
+            public Object intercept(Invocation invocation) throws Throwable {
+                System.out.println("代理公司代理特产公司的特产开始。");
+                Object result = invocation.proceed();
+                System.out.println("代理公司代理特产公司的特产结束。");
+                return result;
+            }
+        });
+        specialty.display();
+
+        SpecialtyCatalogCompany catalog = new SpecialtyCatalogCompany();
+        TimingInterceptor timing = new TimingInterceptor();
+        CachingInterceptor caching = new CachingInterceptor(100, 60000, 0, null);
+        SpecialtyCatalog proxy = ProxyFactory.create(SpecialtyCatalog.class, catalog,
+                timing, caching, new RetryInterceptor(3, 10), new RateLimitInterceptor(100));
+        System.out.println(proxy.describe("婺源绿茶"));
+        System.out.println(proxy.describe("婺源绿茶"));
+        System.out.println("真实查询次数：" + catalog.getQueries());
+        timing.printStats();
+        caching.printStats();
+    }
+
+    //每次调用的开销对比：直接调用、手写代理、java.lang.reflect.Proxy、代理工厂
+    public static void benchmarkInterceptorProxy(){
+        final QuietSpecialtyCompany company = new QuietSpecialtyCompany();
+        Specialty rawProxy = (Specialty) Proxy.newProxyInstance(Specialty.class.getClassLoader(),
+                new Class<?>[]{Specialty.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        return method.invoke(company, args);
+                    }
+                });
+        Interceptor passThrough = new Interceptor() {
+            @Override
+            public Object intercept(Invocation invocation) throws Throwable {
+                return invocation.proceed();
+            }
+        };
+        Specialty[] subjects = {
+                company,
+                new QuietProxyCompany(company),
+                rawProxy,
+                ProxyFactory.create(Specialty.class, company),
+                ProxyFactory.create(Specialty.class, company, passThrough)
+        };
+        String[] names = {"直接调用", "手写代理", "reflect.Proxy", "代理工厂(无拦截器)", "代理工厂(1个拦截器)"};
+        int total = 5000000;
+        for (int round = 0; round < 2; round++) {//第一轮预热
+            for (int s = 0; s < subjects.length; s++) {
+                Specialty subject = subjects[s];
+                long begin = System.nanoTime();
+                for (int i = 0; i < total; i++) {
+                    subject.display();
+                }
+                long nanos = System.nanoTime() - begin;
+                if(round == 1){
+                    System.out.println(names[s] + "：每次调用" + nanos * 1000 / total / 1000.0 + "ns");
+                }
+            }
+        }
+    }
+
+    public static void testRemoteProxy(){
+        SpecialtyServer server = null;
+        RemoteSpecialty remote = null;
+        try {
+            server = new SpecialtyServer(new SpecialtyCompany());
+            server.start();
+            remote = new RemoteSpecialty(server.getPort());
+            remote.display();
+            RemoteCall[] calls = new RemoteCall[3];
+            for (int i = 0; i < calls.length; i++) {//先发出3个调用，再等待结果
+                calls[i] = remote.displayAsync();
+            }
+            for (RemoteCall call : calls) {
+                call.await();
+            }
+            remote.printStats();
+        } catch (IOException e) {
+            System.out.println("远程代理测试失败：" + e);
+        } finally {
+            if(remote != null){
+                remote.close();
+            }
+            if(server != null){
+                server.stop();
+            }
+        }
+    }
+
+    //远程调用的开销对比：每次等响应再发下一个 vs 流水线发出所有调用再等待
+    public static void benchmarkRemoteProxy(){
+        SpecialtyServer server = null;
+        RemoteSpecialty remote = null;
+        try {
+            server = new SpecialtyServer(new QuietSpecialtyCompany());
+            server.start();
+            remote = new RemoteSpecialty(server.getPort());
+            int total = 20000;
+            for (int round = 0; round < 2; round++) {//第一轮预热
+                long begin = System.nanoTime();
+                for (int i = 0; i < total; i++) {
+                    remote.display();
+                }
+                long sequential = System.nanoTime() - begin;
+
+                RemoteCall[] calls = new RemoteCall[total];
+                begin = System.nanoTime();
+                for (int i = 0; i < total; i++) {
+                    calls[i] = remote.displayAsync();
+                }
+                for (RemoteCall call : calls) {
+                    call.await();
+                }
+                long pipelined = System.nanoTime() - begin;
+                if(round == 1){
+                    System.out.println("逐个调用：每秒" + total * 1000000000L / sequential + "次");
+                    System.out.println("流水线调用：每秒" + total * 1000000000L / pipelined + "次");
+                }
+            }
+            remote.printStats();
+        } catch (IOException e) {
+            System.out.println("远程代理基准测试失败：" + e);
+        } finally {
+            if(remote != null){
+                remote.close();
+            }
+            if(server != null){
+                server.stop();
+            }
+        }
+    }
+
+    public static void testProtectionProxy(){
+        ProtectionProxyCompany proxy = new ProtectionProxyCompany(new SpecialtyCompany(), 1, 3, 2);
+        for (int i = 0; i < 5; i++) {//令牌桶只攒了3个令牌，后2次调用立即被拒绝
+            try {
+                proxy.display();
+            } catch (RejectedExecutionException e) {
+                System.out.println("调用被拒绝：" + e.getMessage());
+            }
+        }
+        proxy.printStats();
+    }
+
+    //突发压力下真实主题的吞吐量：16个线程不停地调用500ms
+    public static void benchmarkProtectionProxy(){
+        SlowSpecialtyCompany company = new SlowSpecialtyCompany();
+        final ProtectionProxyCompany proxy = new ProtectionProxyCompany(company, 200, 20, 4);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        final CountDownLatch done = new CountDownLatch(16);
+        long begin = System.nanoTime();
+        for (int i = 0; i < 16; i++) {//16个线程不停地突发调用
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (System.nanoTime() < deadline){
+                        try {
+                            proxy.display();
+                        } catch (RejectedExecutionException ignored) {
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        proxy.printStats();
+        System.out.println("特产公司" + millis + "ms内展示" + company.getDisplays() + "次");
+    }
+
+    public static void testLazyProxy(){
+        ProxyCompany lazyProxy = new ProxyCompany();
+        System.out.println("特产公司是否已创建：" + lazyProxy.isCreated());
+        lazyProxy.display();
+        System.out.println("特产公司是否已创建：" + lazyProxy.isCreated());
+    }
+
 
     //抽象主题：特产
     interface Specialty{
@@ -72,14 +341,35 @@ public class ProxyPattern {
         }
     }
 
+    //真实主题的创建方法
+    interface SpecialtyFactory{
+        Specialty create();
+    }
+
     //代理：某代理公司
+    //虚拟代理：创建代理时不创建特产公司，第一次display()时才创建；用CAS发布真实主题，不加锁，
+    //多个线程同时第一次使用时可能各创建一个，只有一个会被采用，所以真实主题的创建不能有副作用
     static class ProxyCompany implements Specialty{
-        private SpecialtyCompany realSubject=new SpecialtyCompany();
+        private final SpecialtyFactory factory;
+        private final AtomicReference<Specialty> realSubject = new AtomicReference<>();
+
+        ProxyCompany(){
+            this(new SpecialtyFactory() {
+                @Override
+                public Specialty create() {
+                    return new SpecialtyCompany();
+                }
+            });
+        }
+
+        ProxyCompany(SpecialtyFactory factory){
+            this.factory = factory;
+        }
 
         @Override
         public void display() {
             preRequest();
-            realSubject.display();
+            getRealSubject().display();
             postRequest();
         }
 
@@ -92,8 +382,971 @@ public class ProxyPattern {
         {
             System.out.println("代理公司代理特产公司的特产结束。");
         }
+
+        Specialty getRealSubject(){
+            Specialty subject = realSubject.get();
+            if(subject == null){
+                Specialty created = factory.create();
+                if(realSubject.compareAndSet(null, created)){
+                    subject = created;
+                }else{
+                    subject = realSubject.get();//别的线程先创建好了
+                }
+            }
+            return subject;
+        }
+
+        public boolean isCreated(){
+            return realSubject.get() != null;
+        }
+
+        //在后台提前创建真实主题，之后第一次使用时不用再等待创建
+        public void prewarm(Executor executor){
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    getRealSubject();
+                }
+            });
+        }
+    }
+
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //抽象主题：特产目录，按名称查询特产介绍
+    interface SpecialtyCatalog{
+        String describe(String name);
+    }
+
+    //真实主题：特产公司的目录，每次查询都很慢
+    static class SpecialtyCatalogCompany implements SpecialtyCatalog{
+        private final AtomicLong queries = new AtomicLong();
+
+        @Override
+        public String describe(String name) {
+            queries.incrementAndGet();
+            try {
+                Thread.sleep(20);//模拟很慢的查询
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return name + "：特产公司的招牌特产";
+        }
+
+        public long getQueries(){
+            return queries.get();
+        }
+    }
+
+    //缓存未命中时加载数据的方法
+    interface Loader<K,V>{
+        V load(K key) throws Exception;
+    }
+
+    //缓存代理：按参数缓存真实主题的结果
+    //容量满时淘汰最久没有访问的结果(LRU)，超过存活时间的结果重新加载，超过刷新时间的结果先返回旧值再在后台刷新；
+    //同一个参数同时只加载一次，其他线程等待这次加载的结果
+    static class CachingProxy<K,V>{
+        private final Loader<K,V> loader;
+        private final int maxSize;
+        private final long expireNanos;
+        private final long refreshNanos;
+        private final Executor refreshExecutor;
+        private final LinkedHashMap<K,CacheEntry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);//由this加锁保护，按访问顺序排列
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final AtomicLong refreshes = new AtomicLong();
+
+        //expireMillis和refreshMillis为0表示不过期、不刷新；refreshMillis应小于expireMillis；
+        //只使用get(key, loader)时loader可以为null
+        CachingProxy(Loader<K,V> loader, int maxSize, long expireMillis, long refreshMillis, Executor refreshExecutor){
+            this.loader = loader;
+            this.maxSize = maxSize;
+            this.expireNanos = TimeUnit.MILLISECONDS.toNanos(expireMillis);
+            this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMillis);
+            this.refreshExecutor = refreshExecutor;
+        }
+
+        public V get(K key){
+            return get(key, loader);
+        }
+
+        //未命中或需要刷新时用这次调用给出的loader加载，用于每次调用的加载方式不同的场合(如拦截器)
+        public V get(K key, Loader<K,V> loader){
+            CacheEntry<V> entry;
+            boolean owner = false;
+            long now = System.nanoTime();
+            synchronized (this){
+                entry = entries.get(key);
+                if(entry != null && expireNanos > 0 && entry.isDone() && now - entry.loadedNanos > expireNanos){
+                    entries.remove(key);//已过期
+                    entry = null;
+                }
+                if(entry == null){
+                    entry = newEntry(key, loader);
+                    entries.put(key, entry);
+                    owner = true;
+                    evictIfNeeded();
+                }
+            }
+            if(owner){
+                misses.incrementAndGet();
+                entry.future.run();//在锁外加载，同一个参数的其他线程等待这次加载
+            }else{
+                hits.incrementAndGet();
+            }
+            V value;
+            try {
+                value = entry.getValue();
+            } catch (RuntimeException e) {
+                synchronized (this){
+                    if(entries.get(key) == entry){
+                        entries.remove(key);//加载失败的结果不缓存
+                    }
+                }
+                throw e;
+            }
+            if(refreshNanos > 0 && now - entry.loadedNanos > refreshNanos && entry.refreshing.compareAndSet(false, true)){
+                refresh(key, entry, loader);
+            }
+            return value;
+        }
+
+        private CacheEntry<V> newEntry(final K key, final Loader<K,V> loader){
+            return new CacheEntry<>(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    return loader.load(key);
+                }
+            });
+        }
+
+        //后台重新加载，加载成功后替换旧值，失败时继续使用旧值
+        private void refresh(final K key, final CacheEntry<V> old, final Loader<K,V> loader){
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CacheEntry<V> fresh = newEntry(key, loader);
+                    fresh.future.run();
+                    try {
+                        fresh.getValue();
+                    } catch (RuntimeException e) {
+                        old.refreshing.set(false);
+                        return;
+                    }
+                    synchronized (CachingProxy.this){
+                        if(entries.get(key) == old){
+                            entries.put(key, fresh);
+                        }
+                    }
+                    refreshes.incrementAndGet();
+                }
+            });
+        }
+
+        private void evictIfNeeded(){
+            Iterator<CacheEntry<V>> iterator = entries.values().iterator();
+            while (entries.size() > maxSize && iterator.hasNext()){
+                iterator.next();
+                iterator.remove();//最前面的是最久没有访问的
+                evictions.incrementAndGet();
+            }
+        }
+
+        public void printStats(){
+            long h = hits.get();
+            long total = h + misses.get();
+            System.out.println("缓存命中:" + h + " 未命中:" + misses.get()
+                    + " 命中率:" + (total == 0 ? 0 : h * 100 / total) + "%"
+                    + " 淘汰:" + evictions.get() + " 后台刷新:" + refreshes.get());
+        }
+    }
+
+    //缓存中的一个结果：加载中时其他线程在future上等待
+    static class CacheEntry<V>{
+        private final FutureTask<V> future;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long loadedNanos;
+
+        CacheEntry(final Callable<V> loader){
+            this.future = new FutureTask<>(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    V value = loader.call();
+                    loadedNanos = System.nanoTime();
+                    return value;
+                }
+            });
+        }
+
+        boolean isDone(){
+            return future.isDone();
+        }
+
+        V getValue(){
+            boolean interrupted = false;
+            try {
+                while (true){
+                    try {
+                        return future.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("加载失败", e.getCause());
+            } finally {
+                if(interrupted){
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    //缓存代理：代理特产目录，相同名称的查询直接从缓存返回
+    static class CachingCatalogProxy implements SpecialtyCatalog{
+        private final CachingProxy<String,String> cache;
+
+        CachingCatalogProxy(final SpecialtyCatalog realSubject, int maxSize, long expireMillis,
+                            long refreshMillis, Executor refreshExecutor){
+            cache = new CachingProxy<>(new Loader<String, String>() {
+                @Override
+                public String load(String key) {
+                    return realSubject.describe(key);
+                }
+            }, maxSize, expireMillis, refreshMillis, refreshExecutor);
+        }
+
+        @Override
+        public String describe(String name) {
+            return cache.get(name);
+        }
+
+        public void printStats(){
+            cache.printStats();
+        }
+    }
+
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //拦截器看到的一次调用，proceed()交给下一个拦截器，最后一个之后调用真实主题
+    interface Invocation{
+        Method getMethod();
+        Object[] getArgs();
+        Object proceed() throws Throwable;
+    }
+
+    //拦截器：代替代理类中写死的preRequest()/postRequest()
+    interface Interceptor{
+        Object intercept(Invocation invocation) throws Throwable;
+    }
+
+    //动态代理工厂：任意接口加一串拦截器生成代理
+    //每个接口的代理类和构造方法只生成一次并缓存；Android上不能在运行时生成字节码，所以用java.lang.reflect.Proxy生成代理类
+    static class ProxyFactory{
+        private static final ConcurrentHashMap<Class<?>,Constructor<?>> CONSTRUCTORS = new ConcurrentHashMap<>();
+
+        @SuppressWarnings("unchecked")
+        public static <T> T create(Class<T> type, T target, Interceptor... interceptors){
+            InvocationHandler handler = new InterceptorHandler(target, interceptors.clone());
+            try {
+                return (T) getConstructor(type).newInstance(handler);
+            } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("无法创建" + type.getName() + "的代理", e);
+            }
+        }
+
+        private static Constructor<?> getConstructor(Class<?> type){
+            Constructor<?> constructor = CONSTRUCTORS.get(type);
+            if(constructor == null){
+                try {
+                    constructor = Proxy.getProxyClass(type.getClassLoader(), type).getConstructor(InvocationHandler.class);
+                } catch (NoSuchMethodException e) {
+                    throw new IllegalStateException(e);
+                }
+                Constructor<?> existing = CONSTRUCTORS.putIfAbsent(type, constructor);
+                if(existing != null){
+                    constructor = existing;
+                }
+            }
+            return constructor;
+        }
+    }
+
+    //把代理上的调用交给拦截器链，没有拦截器时直接调用真实主题
+    static class InterceptorHandler implements InvocationHandler{
+        private final Object target;
+        private final Interceptor[] interceptors;
+
+        InterceptorHandler(Object target, Interceptor[] interceptors){
+            this.target = target;
+            this.interceptors = interceptors;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if(interceptors.length == 0 || method.getDeclaringClass() == Object.class){
+                return invokeTarget(method, args);//equals、hashCode、toString不经过拦截器
+            }
+            return new ChainInvocation(method, args, 0).proceed();
+        }
+
+        private Object invokeTarget(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();//抛出真实主题的原始异常
+            }
+        }
+
+        private class ChainInvocation implements Invocation{
+            private final Method method;
+            private final Object[] args;
+            private final int index;
+
+            ChainInvocation(Method method, Object[] args, int index){
+                this.method = method;
+                this.args = args;
+                this.index = index;
+            }
+
+            @Override
+            public Method getMethod() {
+                return method;
+            }
+
+            @Override
+            public Object[] getArgs() {
+                return args;
+            }
+
+            @Override
+            public Object proceed() throws Throwable {
+                if(index == interceptors.length){
+                    return invokeTarget(method, args);
+                }
+                return interceptors[index].intercept(new ChainInvocation(method, args, index + 1));
+            }
+        }
+    }
+
+    //计时拦截器：统计调用次数和总耗时
+    static class TimingInterceptor implements Interceptor{
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public Object intercept(Invocation invocation) throws Throwable {
+            long begin = System.nanoTime();
+            try {
+                return invocation.proceed();
+            } finally {
+                nanos.addAndGet(System.nanoTime() - begin);
+                calls.incrementAndGet();
+            }
+        }
+
+        public void printStats(){
+            long c = calls.get();
+            System.out.println("调用次数:" + c + " 平均耗时:" + (c == 0 ? 0 : nanos.get() / c) + "ns");
+        }
+    }
+
+    //缓存拦截器：每个方法一个CachingProxy，按参数缓存返回值，容量、过期、刷新和同参数只加载一次都由CachingProxy负责；
+    //无返回值的方法不缓存
+    static class CachingInterceptor implements Interceptor{
+        private static final Object NO_ARGS = new Object();
+
+        private final ConcurrentHashMap<Method,CachingProxy<Object,Object>> caches = new ConcurrentHashMap<>();
+        private final int maxSize;
+        private final long expireMillis;
+        private final long refreshMillis;
+        private final Executor refreshExecutor;
+
+        //参数含义同CachingProxy，maxSize是每个方法的容量
+        CachingInterceptor(int maxSize, long expireMillis, long refreshMillis, Executor refreshExecutor){
+            this.maxSize = maxSize;
+            this.expireMillis = expireMillis;
+            this.refreshMillis = refreshMillis;
+            this.refreshExecutor = refreshExecutor;
+        }
+
+        @Override
+        public Object intercept(final Invocation invocation) throws Throwable {
+            Method method = invocation.getMethod();
+            if(method.getReturnType() == void.class){
+                return invocation.proceed();
+            }
+            try {
+                return getCache(method).get(key(invocation.getArgs()), new Loader<Object, Object>() {
+                    @Override
+                    public Object load(Object key) throws Exception {
+                        try {
+                            return invocation.proceed();
+                        } catch (Exception | Error e) {
+                            throw e;
+                        } catch (Throwable t) {
+                            throw new ExecutionException(t);
+                        }
+                    }
+                });
+            } catch (IllegalStateException e) {
+                throw e.getCause() != null ? e.getCause() : e;//抛出真实主题的原始异常
+            }
+        }
+
+        //没有参数和只有一个参数时直接用参数作键，不创建新的对象
+        private static Object key(Object[] args){
+            if(args == null || args.length == 0){
+                return NO_ARGS;
+            }
+            return args.length == 1 ? args[0] : Arrays.asList(args);
+        }
+
+        private CachingProxy<Object,Object> getCache(Method method){
+            CachingProxy<Object,Object> cache = caches.get(method);
+            if(cache == null){
+                cache = new CachingProxy<>(null, maxSize, expireMillis, refreshMillis, refreshExecutor);
+                CachingProxy<Object,Object> existing = caches.putIfAbsent(method, cache);
+                if(existing != null){
+                    cache = existing;
+                }
+            }
+            return cache;
+        }
+
+        public void printStats(){
+            for (Map.Entry<Method,CachingProxy<Object,Object>> entry : caches.entrySet()) {
+                System.out.print(entry.getKey().getName() + " ");
+                entry.getValue().printStats();
+            }
+        }
+    }
+
+    //重试拦截器：真实主题抛出异常时重试，最多调用maxAttempts次
+    static class RetryInterceptor implements Interceptor{
+        private final int maxAttempts;
+        private final long backoffMillis;
+
+        RetryInterceptor(int maxAttempts, long backoffMillis){
+            this.maxAttempts = maxAttempts;
+            this.backoffMillis = backoffMillis;
+        }
+
+        @Override
+        public Object intercept(Invocation invocation) throws Throwable {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return invocation.proceed();
+                } catch (Exception e) {
+                    if(attempt >= maxAttempts){
+                        throw e;
+                    }
+                    Thread.sleep(backoffMillis * attempt);
+                }
+            }
+        }
+    }
+
+    //限流拦截器：每秒最多放行permitsPerSecond次调用，超出的调用等待到下一个空闲时刻
+    static class RateLimitInterceptor implements Interceptor{
+        private final long intervalNanos;
+        private final AtomicLong nextFreeNanos = new AtomicLong(System.nanoTime());
+
+        RateLimitInterceptor(int permitsPerSecond){
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        }
+
+        @Override
+        public Object intercept(Invocation invocation) throws Throwable {
+            long now = System.nanoTime();
+            long slot;
+            while (true){//CAS占用下一个时刻，不加锁
+                long next = nextFreeNanos.get();
+                slot = Math.max(next, now);
+                if(nextFreeNanos.compareAndSet(next, slot + intervalNanos)){
+                    break;
+                }
+            }
+            long wait = slot - now;
+            if(wait > 0){
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            return invocation.proceed();
+        }
+    }
+
+    //基准测试用的真实主题：不打印，只计数
+    static class QuietSpecialtyCompany implements Specialty{
+        int displays;
+
+        @Override
+        public void display() {
+            displays++;
+        }
+    }
+
+    //基准测试用的手写代理：和ProxyCompany结构相同，preRequest()/postRequest()只计数
+    static class QuietProxyCompany implements Specialty{
+        private final Specialty realSubject;
+        int requests;
+
+        QuietProxyCompany(Specialty realSubject){
+            this.realSubject = realSubject;
+        }
+
+        @Override
+        public void display() {
+            preRequest();
+            realSubject.display();
+            postRequest();
+        }
+
+        public void preRequest(){
+            requests++;
+        }
+
+        public void postRequest(){
+            requests++;
+        }
     }
 
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //远程代理的协议：请求帧[int 长度][int 编号][byte 方法]，响应帧[int 长度][int 编号][byte 状态]，长度不含自身的4个字节
+    static final byte METHOD_DISPLAY = 1;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    static final int REQUEST_BYTES = 9;
+    static final int RESPONSE_BYTES = 9;
+    static final int MAX_BATCH = 256;//一次写出的最多请求数
+
+    //服务端：一个Selector线程接收所有连接，收到的请求交给真实主题处理
+    //一次读到的多个请求处理完后，响应合并成一次写出
+    static class SpecialtyServer implements Runnable{
+        private final Specialty realSubject;
+        private final Selector selector;
+        private final ServerSocketChannel serverChannel;
+        private volatile boolean running = true;
+
+        SpecialtyServer(Specialty realSubject) throws IOException {
+            this.realSubject = realSubject;
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        public int getPort(){
+            return serverChannel.socket().getLocalPort();
+        }
+
+        public void start(){
+            Thread thread = new Thread(this, "specialty-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void stop(){
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running){
+                    selector.select();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()){
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        if(!key.isValid()){
+                            continue;
+                        }
+                        if(key.isAcceptable()){
+                            accept();
+                        }else{
+                            ((Connection) key.attachment()).onReady();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("特产服务端异常：" + e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                closeQuietly(selector);
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel = serverChannel.accept();
+            if(channel == null){
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+
+        private byte invoke(byte method){
+            if(method != METHOD_DISPLAY){
+                return STATUS_ERROR;
+            }
+            try {
+                realSubject.display();
+                return STATUS_OK;
+            } catch (RuntimeException e) {
+                return STATUS_ERROR;
+            }
+        }
+
+        //一个客户端连接，读写都用直接缓冲区
+        private class Connection{
+            private final SocketChannel channel;
+            private final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+            private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+            private SelectionKey key;
+
+            Connection(SocketChannel channel){
+                this.channel = channel;
+            }
+
+            void onReady(){
+                try {
+                    if(key.isReadable() && channel.read(in) < 0){
+                        close();
+                        return;
+                    }
+                    process();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+
+            //处理缓冲区中所有完整的请求，再把响应一次写出；写不完时等可写再继续，期间不再读取新的请求
+            private void process() throws IOException {
+                while (true){
+                    in.flip();
+                    boolean outFull = false;
+                    while (in.remaining() >= 4){
+                        int length = in.getInt(in.position());
+                        if(length < REQUEST_BYTES - 4 || length > in.capacity() - 4){
+                            throw new IOException("错误的请求帧长度：" + length);
+                        }
+                        if(in.remaining() < 4 + length){
+                            break;
+                        }
+                        if(out.remaining() < RESPONSE_BYTES){
+                            outFull = true;
+                            break;
+                        }
+                        int start = in.position();
+                        in.getInt();
+                        int id = in.getInt();
+                        byte method = in.get();
+                        in.position(start + 4 + length);
+                        out.putInt(RESPONSE_BYTES - 4).putInt(id).put(invoke(method));
+                    }
+                    in.compact();
+                    out.flip();
+                    channel.write(out);
+                    out.compact();
+                    if(out.position() > 0){
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                    if(!outFull){
+                        return;
+                    }
+                }
+            }
+
+            private void close(){
+                key.cancel();
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    static void closeQuietly(Closeable closeable){
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    //一次远程调用的结果，可以先发出多个调用再逐个等待
+    static class RemoteCall{
+        final int id;
+        final byte method;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String error;
+
+        RemoteCall(int id, byte method){
+            this.id = id;
+            this.method = method;
+        }
+
+        void complete(String error){
+            this.error = error;
+            done.countDown();
+        }
+
+        public boolean isDone(){
+            return done.getCount() == 0;
+        }
+
+        public void await(){
+            boolean interrupted = false;
+            while (true){
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+            if(error != null){
+                throw new IllegalStateException("远程调用失败：" + error);
+            }
+        }
+    }
+
+    //远程代理：把display()通过一个连接转发给服务端的真实主题
+    //发出调用后不必等待响应就能发出下一个（流水线），响应按编号对应到调用；写线程把排队的小请求合并成一次写出
+    static class RemoteSpecialty implements Specialty, Closeable{
+        private final SocketChannel channel;
+        private final ConcurrentHashMap<Integer,RemoteCall> pending = new ConcurrentHashMap<>();
+        private final LinkedBlockingQueue<RemoteCall> outgoing = new LinkedBlockingQueue<>();
+        private final AtomicInteger nextId = new AtomicInteger();
+        private final AtomicLong writes = new AtomicLong();
+        private final AtomicLong requests = new AtomicLong();
+        private final Thread writer;
+        private final Thread reader;
+        private volatile boolean closed;
+
+        RemoteSpecialty(int port) throws IOException {
+            channel = SocketChannel.open(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+            channel.socket().setTcpNoDelay(true);
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, "remote-specialty-writer");
+            reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readLoop();
+                }
+            }, "remote-specialty-reader");
+            writer.setDaemon(true);
+            reader.setDaemon(true);
+            writer.start();
+            reader.start();
+        }
+
+        @Override
+        public void display() {
+            displayAsync().await();
+        }
+
+        public RemoteCall displayAsync(){
+            RemoteCall call = new RemoteCall(nextId.incrementAndGet(), METHOD_DISPLAY);
+            pending.put(call.id, call);
+            if(closed){
+                pending.remove(call.id);
+                call.complete("连接已关闭");
+                return call;
+            }
+            outgoing.add(call);
+            return call;
+        }
+
+        private void writeLoop(){
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_BATCH * REQUEST_BYTES);
+            List<RemoteCall> batch = new ArrayList<>(MAX_BATCH);
+            try {
+                while (!closed){
+                    batch.add(outgoing.take());
+                    outgoing.drainTo(batch, MAX_BATCH - 1);//等待期间排队的请求一起写出
+                    for (RemoteCall call : batch) {
+                        buffer.putInt(REQUEST_BYTES - 4).putInt(call.id).put(call.method);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()){
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                    writes.incrementAndGet();
+                    requests.addAndGet(batch.size());
+                    batch.clear();
+                }
+            } catch (InterruptedException | IOException e) {
+                close();
+            }
+        }
+
+        private void readLoop(){
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            try {
+                while (channel.read(buffer) >= 0){
+                    buffer.flip();
+                    while (buffer.remaining() >= RESPONSE_BYTES){
+                        buffer.getInt();
+                        int id = buffer.getInt();
+                        byte status = buffer.get();
+                        RemoteCall call = pending.remove(id);
+                        if(call != null){
+                            call.complete(status == STATUS_OK ? null : "服务端处理失败");
+                        }
+                    }
+                    buffer.compact();
+                }
+            } catch (IOException ignored) {
+            }
+            close();
+        }
+
+        @Override
+        public void close() {
+            if(closed){
+                return;
+            }
+            closed = true;
+            closeQuietly(channel);
+            writer.interrupt();
+            for (RemoteCall call : pending.values()) {
+                if(pending.remove(call.id) != null){
+                    call.complete("连接已关闭");
+                }
+            }
+        }
+
+        public void printStats(){
+            long w = writes.get();
+            System.out.println("请求数:" + requests.get() + " 写出次数:" + w
+                    + " 平均每次写出" + (w == 0 ? 0 : requests.get() / w) + "个请求");
+        }
+    }
+
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //令牌桶：每秒补充permitsPerSecond个令牌，最多攒burst个
+    //用GCRA实现：只记录下一个令牌的理论到达时间，CAS更新，不加锁也不需要补充令牌的线程
+    static class TokenBucket{
+        private final long intervalNanos;
+        private final long burstNanos;
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+        TokenBucket(int permitsPerSecond, int burst){
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+            this.burstNanos = intervalNanos * (burst - 1);
+        }
+
+        public boolean tryAcquire(){
+            long now = System.nanoTime();
+            while (true){
+                long tat = theoreticalArrival.get();
+                long start = Math.max(tat, now);
+                if(start - now > burstNanos){
+                    return false;//令牌已用完
+                }
+                if(theoreticalArrival.compareAndSet(tat, start + intervalNanos)){
+                    return true;
+                }
+            }
+        }
+    }
+
+    //保护代理：令牌桶限流，信号量限制同时进入真实主题的调用数(舱壁)，超出的调用立即拒绝而不是排队
+    static class ProtectionProxyCompany implements Specialty{
+        private final Specialty realSubject;
+        private final TokenBucket rateLimiter;
+        private final Semaphore bulkhead;
+        private final AtomicLong accepted = new AtomicLong();
+        private final AtomicLong rateRejected = new AtomicLong();
+        private final AtomicLong bulkheadRejected = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger peakInFlight = new AtomicInteger();
+
+        ProtectionProxyCompany(Specialty realSubject, int permitsPerSecond, int burst, int maxConcurrent){
+            this.realSubject = realSubject;
+            this.rateLimiter = new TokenBucket(permitsPerSecond, burst);
+            this.bulkhead = new Semaphore(maxConcurrent);
+        }
+
+        @Override
+        public void display() {
+            preRequest();
+            try {
+                realSubject.display();
+            } finally {
+                postRequest();
+            }
+        }
+
+        //舱壁已满或超过限流时抛出RejectedExecutionException
+        //先占舱壁再取令牌，被舱壁拒绝的调用不会白白消耗令牌
+        public void preRequest(){
+            if(!bulkhead.tryAcquire()){
+                bulkheadRejected.incrementAndGet();
+                throw new RejectedExecutionException("并发数已满");
+            }
+            if(!rateLimiter.tryAcquire()){
+                bulkhead.release();
+                rateRejected.incrementAndGet();
+                throw new RejectedExecutionException("超过限流");
+            }
+            accepted.incrementAndGet();
+            int current = inFlight.incrementAndGet();
+            while (true){
+                int peak = peakInFlight.get();
+                if(current <= peak || peakInFlight.compareAndSet(peak, current)){
+                    break;
+                }
+            }
+        }
+
+        public void postRequest(){
+            inFlight.decrementAndGet();
+            bulkhead.release();
+        }
+
+        public void printStats(){
+            System.out.println("放行:" + accepted.get() + " 限流拒绝:" + rateRejected.get()
+                    + " 舱壁拒绝:" + bulkheadRejected.get() + " 最大并发:" + peakInFlight.get());
+        }
+    }
+
+    //压测用的真实主题：每次展示耗时几毫秒，不打印
+    static class SlowSpecialtyCompany implements Specialty{
+        private final AtomicLong displays = new AtomicLong();
+
+        @Override
+        public void display() {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            displays.incrementAndGet();
+        }
+
+        public long getDisplays(){
+            return displays.get();
+        }
+    }
 
 
 }
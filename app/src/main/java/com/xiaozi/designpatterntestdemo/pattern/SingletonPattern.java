@@ -1,8 +1,29 @@
 package com.xiaozi.designpatterntestdemo.pattern;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * @author : Sun
@@ -51,6 +72,31 @@ import java.util.PriorityQueue;
  * 单例模式可扩展为有限的多例(Multitcm)模式，这种模式可生成有限个实例并保存在ArmyList中,客户需要时可随机获取.
  * 【例2】用有限的多例模式模拟产生美国部长对象。
  *
+ * 懒汉式单例的优化
+ * 在 getInstance 方法上加 synchronized 后，即使实例已经创建，每次访问仍要竞争类锁，高并发时会成为瓶颈。
+ * 双重检查锁（DCL）只在实例尚未创建时加锁，创建之后只读一次 volatile 字段即可返回，访问路径上没有锁。
+ * 【例3】用双重检查锁改写懒汉式总统对象，并在 1~64 个线程下与同步方法版本做性能对比。
+ *
+ * 按键登记的单例注册表
+ * 当需要很多个"单例"（例如每个租户、每个配置项一个实例）时，可以把单例登记在注册表中，以键区分。
+ * 每个键可以选择饿汉式（登记时创建）或懒汉式（第一次使用时创建），并统计创建耗时和命中次数。
+ * 【例4】用注册表按国家登记总统对象。
+ *
+ * 多例的选取策略
+ * 例2中用 Math.random() 随机选取部长，所有线程共享同一个同步的 Random，且不考虑各个实例的忙闲。多核下可以
+ * 改用线程本地随机数、线程亲和（每个线程固定用一个实例）、按线程分段计数的轮询，或者选未完成工作最少的实例。
+ * 【例5】部长数量可配置，用不同的选取策略选取部长，并在多线程下对比各策略的开销。
+ *
+ * 多例模式扩展为对象池
+ * 多例模式中的实例是共享的，不适合昂贵且非线程安全的资源。对象池在多例的基础上增加借出/归还，借出的实例由
+ * 借用者独占；没有空闲实例时可以等待（或超时放弃），也可以增长到设定的上限；长时间不归还的实例视为泄漏。
+ * 【例6】用对象池管理部长对象，并统计利用率、等待时间和借用耗时的百分位数。
+ *
+ * 饿汉式单例的预热
+ * 饿汉式单例在类加载时构造实例，构造工作落在第一个访问该类的线程上（通常是 MainActivity.onCreate 所在的主线程），
+ * 多个单例还会被串行构造。可以让单例把构造任务登记到预热协调器，启动时在后台线程池中并行构造，getInstance
+ * 只在实例尚未就绪时才等待。
+ * 【例7】用预热协调器在后台构造总统对象，并统计构造耗时。
  *
  */
 public class SingletonPattern {
@@ -65,6 +111,133 @@ public class SingletonPattern {
         }else{
             System.out.println("他们不是同一人！");
         }
+        PresidentLazy presidentLazy3 = PresidentLazy.getInstanceDCL();
+        if(presidentLazy1.equals(presidentLazy3)){
+            System.out.println("双重检查锁取到的也是同一人！");
+        }
+    }
+
+    //多线程性能对比：同步方法 vs 双重检查锁，线程数从1到64
+    public static void benchmarkSingleton(){
+        final int iterations = 1000000;
+        PresidentLazy.getInstanceDCL();//先创建好实例，只测访问路径
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            long syncNanos = runConcurrently(threads, iterations, new Runnable() {
+                @Override
+                public void run() {
+                    PresidentLazy.getInstanceSync();
+                }
+            });
+            long dclNanos = runConcurrently(threads, iterations, new Runnable() {
+                @Override
+                public void run() {
+                    PresidentLazy.getInstanceDCL();
+                }
+            });
+            System.out.println("线程数:" + threads
+                    + " 同步方法:" + syncNanos / iterations + "ns/次"
+                    + " 双重检查锁:" + dclNanos / iterations + "ns/次");
+        }
+    }
+
+    //启动threads个线程同时执行iterations次op，返回总耗时(纳秒)
+    static long runConcurrently(int threads, final int iterations, final Runnable op){
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < iterations; j++) {
+                            op.run();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    //多线程下各选取策略的性能对比，线程数从1到64
+    public static void benchmarkMinisterSelector(){
+        final int iterations = 1000000;
+        List<MinisterMultiton> ministers = MinisterMultiton.createInstances(8);
+        for (SelectStrategy strategy : SelectStrategy.values()) {
+            final MinisterSelector selector = new MinisterSelector(ministers, strategy);
+            StringBuilder result = new StringBuilder(strategy.name()).append(':');
+            for (int threads = 1; threads <= 64; threads *= 2) {
+                long nanos = runConcurrently(threads, iterations, new Runnable() {
+                    @Override
+                    public void run() {
+                        selector.release(selector.acquire());
+                    }
+                });
+                result.append(" 线程").append(threads).append('=').append(nanos / iterations).append("ns");
+            }
+            System.out.println(result);
+        }
+    }
+
+    public static void testMinisterPool(){
+        MinisterPool pool = new MinisterPool(MinisterMultiton.createInstances(1), 2);
+        try {
+            MinisterMultiton first = pool.borrow();
+            MinisterMultiton second = pool.borrow();//池中没有空闲的部长，增长到上限2个
+            second.getNum();
+            MinisterMultiton third = pool.borrow(10, TimeUnit.MILLISECONDS);//已到上限，超时返回null
+            System.out.println("第三次借用：" + (third==null ? "超时" : "成功"));
+            pool.giveBack(second);
+            for (String leak : pool.detectLeaks(0)) {
+                System.out.println(leak);
+            }
+            pool.printStats();
+            pool.giveBack(first);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //启动时调用：在后台并行构造所有登记了预热任务的单例
+    public static void warmUpSingletons(){
+        PresidentDeferred.prepare();
+        SingletonWarmUp.start();
+    }
+
+    public static void testWarmUp(){
+        PresidentDeferred presidentDeferred = PresidentDeferred.getInstance();//已就绪直接返回，构造中则等待
+        presidentDeferred.getName();
+        SingletonWarmUp.printStats();
+    }
+
+    public static void testSingletonRegistry(){
+        SingletonRegistry<String,String> registry = new SingletonRegistry<>();
+        InstanceFactory<String,String> factory = new InstanceFactory<String, String>() {
+            @Override
+            public String create(String key) {
+                System.out.println("产生一个" + key + "总统！");
+                return key + "总统";
+            }
+        };
+        registry.registerEager("美国", factory);//饿汉式
+        registry.registerLazy("法国", factory);//懒汉式
+        System.out.println("法国总统是否已产生：" + registry.isCreated("法国"));
+        System.out.println(registry.get("法国"));
+        System.out.println(registry.get("法国"));
+        System.out.println(registry.get("美国"));
+        registry.printStats();
     }
 
     public static void testMultiton(){
@@ -74,6 +247,13 @@ public class SingletonPattern {
         multiton2.getNum();
         MinisterMultiton multiton3 = MinisterMultiton.getRandomInstance();
         multiton3.getNum();
+
+        MinisterSelector selector = new MinisterSelector(MinisterMultiton.getInstances(), SelectStrategy.LEAST_OUTSTANDING);
+        MinisterMultiton busy = selector.acquire();//占用一个部长不归还
+        MinisterMultiton idle = selector.acquire();
+        idle.getNum();
+        selector.release(idle);
+        selector.release(busy);
     }
 
     //懒汉式单例模式总统对象
@@ -94,6 +274,28 @@ public class SingletonPattern {
             return instance;
         }
 
+        //双重检查锁：实例创建之后只读一次volatile字段，访问路径上不再加锁
+        public static PresidentLazy getInstanceDCL(){
+            PresidentLazy result = instance;
+            if(result==null){
+                synchronized (PresidentLazy.class){
+                    result = instance;
+                    if(result==null){
+                        instance = result = new PresidentLazy();
+                    }
+                }
+            }
+            return result;
+        }
+
+        //与getInstance相同的同步方法，只是不打印，用于和双重检查锁做性能对比
+        static synchronized PresidentLazy getInstanceSync(){
+            if(instance==null){
+                instance=new PresidentLazy();
+            }
+            return instance;
+        }
+
         public void getName(){
             System.out.println("我是美国总统：Trump!");
         }
@@ -119,17 +321,10 @@ public class SingletonPattern {
 
     //有限的多例模式部长对象
     static class MinisterMultiton{
-        private static final int TOTAL_NUM=3;
-        private static List<MinisterMultiton> list;
+        private static final int DEFAULT_NUM=3;
+        private static volatile List<MinisterMultiton> list=createInstances(DEFAULT_NUM);
         private int num;
 
-        static {
-            list = new ArrayList<>();
-            for (int i = 0; i < TOTAL_NUM; i++) {
-                list.add(new MinisterMultiton(i));
-            }
-        }
-
         private MinisterMultiton(){};
 
         private MinisterMultiton(int i){
@@ -137,9 +332,31 @@ public class SingletonPattern {
             this.num=i;
         }
 
+        //产生total个部长，编号从0开始
+        static List<MinisterMultiton> createInstances(int total){
+            if(total<=0){
+                throw new IllegalArgumentException("部长数量必须大于0：" + total);
+            }
+            List<MinisterMultiton> ministers = new ArrayList<>(total);
+            for (int i = 0; i < total; i++) {
+                ministers.add(new MinisterMultiton(i));
+            }
+            return Collections.unmodifiableList(ministers);
+        }
+
+        //重新设置部长数量，默认是3个
+        public static void setTotalNum(int total){
+            list = createInstances(total);
+        }
+
+        public static List<MinisterMultiton> getInstances(){
+            return list;
+        }
+
         public static MinisterMultiton getRandomInstance(){
-            int index=(int)(Math.random()*TOTAL_NUM);
-            return list.get(index);
+            List<MinisterMultiton> current = list;
+            int index=(int)(Math.random()*current.size());
+            return current.get(index);
         }
 
         public void getNum(){
@@ -148,6 +365,455 @@ public class SingletonPattern {
 
     }
 
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //部长的选取策略
+    enum SelectStrategy{
+        RANDOM,             //原来的Math.random()，所有线程共享一个同步的Random
+        THREAD_LOCAL_RANDOM,//每个线程一个Random，互不竞争
+        THREAD_AFFINITY,    //每个线程第一次选取时分配一个部长，之后一直用它
+        ROUND_ROBIN,        //按线程分段计数的轮询，减少对同一个计数器的竞争
+        LEAST_OUTSTANDING   //随机挑两个部长，选未完成工作较少的那个，用完要release
+    }
+
+    //多例的选取器：按不同策略从一组部长中选取一个
+    static class MinisterSelector{
+        private static final int STRIPES = 16;//必须是2的幂
+        private static final int PADDING = 16;//每个计数器占一个缓存行，避免伪共享
+
+        private final MinisterMultiton[] ministers;
+        private final SelectStrategy strategy;
+        private final AtomicIntegerArray outstanding;
+        private final AtomicLongArray counters = new AtomicLongArray(STRIPES * PADDING);
+        private final AtomicInteger nextAffinity = new AtomicInteger();
+        private final ThreadLocal<Random> random = new ThreadLocal<Random>(){
+            @Override
+            protected Random initialValue() {
+                return new Random();
+            }
+        };
+        private final ThreadLocal<int[]> affinity = new ThreadLocal<int[]>(){
+            @Override
+            protected int[] initialValue() {
+                return new int[]{(nextAffinity.getAndIncrement() & Integer.MAX_VALUE) % ministers.length};
+            }
+        };
+
+        //ministers需要来自MinisterMultiton.createInstances，部长编号就是其下标
+        public MinisterSelector(List<MinisterMultiton> ministers, SelectStrategy strategy){
+            this.ministers = ministers.toArray(new MinisterMultiton[ministers.size()]);
+            this.strategy = strategy;
+            this.outstanding = new AtomicIntegerArray(this.ministers.length);
+        }
+
+        public MinisterMultiton acquire(){
+            int n = ministers.length;
+            int index;
+            switch (strategy){
+                case THREAD_LOCAL_RANDOM:
+                    index = random.get().nextInt(n);
+                    break;
+                case THREAD_AFFINITY:
+                    index = affinity.get()[0];
+                    break;
+                case ROUND_ROBIN:
+                    int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+                    long count = counters.getAndIncrement(stripe * PADDING);
+                    index = (int) ((count + stripe) % n);
+                    break;
+                case LEAST_OUTSTANDING:
+                    Random r = random.get();
+                    int first = r.nextInt(n);
+                    int second = r.nextInt(n);
+                    index = outstanding.get(first) <= outstanding.get(second) ? first : second;
+                    outstanding.incrementAndGet(index);
+                    break;
+                default:
+                    index = (int) (Math.random() * n);
+                    break;
+            }
+            return ministers[index];
+        }
+
+        //LEAST_OUTSTANDING策略下，工作完成后归还，其他策略调用无副作用
+        public void release(MinisterMultiton minister){
+            if (strategy == SelectStrategy.LEAST_OUTSTANDING) {
+                outstanding.decrementAndGet(minister.num);
+            }
+        }
+
+        public int getOutstanding(int num){
+            return outstanding.get(num);
+        }
+    }
+
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //部长对象池：借出的部长由借用者独占，用完必须归还，适合昂贵且非线程安全的资源
+    static class MinisterPool{
+        private static final int LATENCY_SAMPLES = 1024;//借用耗时只保留最近的若干个样本
+
+        private final LinkedBlockingQueue<MinisterMultiton> idle = new LinkedBlockingQueue<>();
+        private final ConcurrentHashMap<MinisterMultiton, BorrowRecord> borrowed = new ConcurrentHashMap<>();
+        private final AtomicInteger created;
+        private final int maxTotal;
+        private final AtomicLong borrowCount = new AtomicLong();
+        private final AtomicLong timeoutCount = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLongArray latencySamples = new AtomicLongArray(LATENCY_SAMPLES);
+
+        //initial是池中初始的部长，需要时可以增长到maxTotal个
+        public MinisterPool(List<MinisterMultiton> initial, int maxTotal){
+            if(maxTotal<initial.size()){
+                throw new IllegalArgumentException("池的上限不能小于初始数量：" + maxTotal);
+            }
+            this.idle.addAll(initial);
+            this.created = new AtomicInteger(initial.size());
+            this.maxTotal = maxTotal;
+        }
+
+        //借出一个部长，没有空闲的就一直等待
+        public MinisterMultiton borrow() throws InterruptedException {
+            return borrow(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        //借出一个部长，超时仍没有空闲的返回null
+        public MinisterMultiton borrow(long timeout, TimeUnit unit) throws InterruptedException {
+            long begin = System.nanoTime();
+            MinisterMultiton minister = idle.poll();
+            if(minister==null){
+                minister = tryGrow();
+            }
+            if(minister==null){
+                minister = idle.poll(timeout, unit);
+                totalWaitNanos.addAndGet(System.nanoTime() - begin);
+                if(minister==null){
+                    timeoutCount.incrementAndGet();
+                    return null;
+                }
+            }
+            long now = System.nanoTime();
+            borrowed.put(minister, new BorrowRecord(Thread.currentThread().getName(), now));
+            long count = borrowCount.getAndIncrement();
+            latencySamples.set((int) (count % LATENCY_SAMPLES), now - begin);
+            return minister;
+        }
+
+        //归还部长，归还不是从本池借出的部长会抛出异常
+        public void giveBack(MinisterMultiton minister){
+            if(borrowed.remove(minister)==null){
+                throw new IllegalStateException("部长不是从本池借出的：" + minister.num);
+            }
+            idle.offer(minister);
+        }
+
+        //未达到上限时新产生一个部长
+        private MinisterMultiton tryGrow(){
+            while (true){
+                int total = created.get();
+                if(total>=maxTotal){
+                    return null;
+                }
+                if(created.compareAndSet(total, total + 1)){
+                    return new MinisterMultiton(total);
+                }
+            }
+        }
+
+        //泄漏检测：返回借出时间超过maxHoldMillis仍未归还的记录
+        public List<String> detectLeaks(long maxHoldMillis){
+            List<String> leaks = new ArrayList<>();
+            long now = System.nanoTime();
+            for (Map.Entry<MinisterMultiton, BorrowRecord> entry : borrowed.entrySet()) {
+                long heldMillis = TimeUnit.NANOSECONDS.toMillis(now - entry.getValue().borrowNanos);
+                if(heldMillis>maxHoldMillis){
+                    leaks.add("部长" + entry.getKey().num + "被线程" + entry.getValue().threadName
+                            + "借出" + heldMillis + "ms未归还");
+                }
+            }
+            return leaks;
+        }
+
+        //利用率：借出数量占已产生部长数量的比例
+        public double getUtilization(){
+            return (double) borrowed.size() / created.get();
+        }
+
+        //借用耗时的百分位数(纳秒)，percentile取0~100
+        public long getLatencyPercentile(double percentile){
+            int size = (int) Math.min(borrowCount.get(), LATENCY_SAMPLES);
+            if(size==0){
+                return 0;
+            }
+            long[] samples = new long[size];
+            for (int i = 0; i < size; i++) {
+                samples[i] = latencySamples.get(i);
+            }
+            Arrays.sort(samples);
+            int index = (int) Math.ceil(percentile / 100 * size) - 1;
+            return samples[Math.max(0, Math.min(size - 1, index))];
+        }
+
+        public void printStats(){
+            System.out.println("部长总数:" + created.get() + "/" + maxTotal
+                    + " 借出:" + borrowed.size()
+                    + " 利用率:" + (int) (getUtilization() * 100) + "%"
+                    + " 借用次数:" + borrowCount.get()
+                    + " 超时次数:" + timeoutCount.get()
+                    + " 等待总时长:" + TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get()) + "ms"
+                    + " 借用耗时p50:" + getLatencyPercentile(50) + "ns"
+                    + " p99:" + getLatencyPercentile(99) + "ns");
+        }
+
+        //借出记录：借用的线程和借出时间
+        static class BorrowRecord{
+            final String threadName;
+            final long borrowNanos;
+
+            BorrowRecord(String threadName, long borrowNanos){
+                this.threadName = threadName;
+                this.borrowNanos = borrowNanos;
+            }
+        }
+    }
+
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //饿汉式单例的预热协调器：单例登记自己的构造任务，启动时在后台线程池中并行构造
+    static class SingletonWarmUp{
+        private static final List<WarmUpTask<?>> tasks = new CopyOnWriteArrayList<>();
+
+        //登记一个单例的构造任务，返回的任务用于获取实例
+        public static <T> WarmUpTask<T> register(String name, Callable<T> creator){
+            WarmUpTask<T> task = new WarmUpTask<>(name, creator);
+            tasks.add(task);
+            return task;
+        }
+
+        //用后台守护线程并行执行所有登记的构造任务
+        public static void start(){
+            int threads = Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "singleton-warmup-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            start(executor);
+            executor.shutdown();//已提交的任务会继续执行完
+        }
+
+        public static void start(Executor executor){
+            for (WarmUpTask<?> task : tasks) {
+                if(!task.isDone()){
+                    executor.execute(task);
+                }
+            }
+        }
+
+        //打印每个单例的构造耗时和执行构造的线程
+        public static void printStats(){
+            for (WarmUpTask<?> task : tasks) {
+                System.out.println(task.name
+                        + (task.isDone() ? " 已就绪" : " 未就绪")
+                        + " 构造耗时:" + task.initNanos / 1000 + "us"
+                        + " 构造线程:" + task.initThread);
+            }
+        }
+    }
+
+    //单例的构造任务：已在后台开始构造时getInstance只等待，尚未开始时由调用线程直接构造
+    static class WarmUpTask<T> implements Runnable{
+        private final String name;
+        private final FutureTask<T> future;
+        private volatile long initNanos;
+        private volatile String initThread;
+
+        WarmUpTask(String name, final Callable<T> creator){
+            this.name = name;
+            this.future = new FutureTask<>(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    long begin = System.nanoTime();
+                    T instance = creator.call();
+                    initNanos = System.nanoTime() - begin;
+                    initThread = Thread.currentThread().getName();
+                    return instance;
+                }
+            });
+        }
+
+        //FutureTask保证构造只执行一次，别的线程正在构造时run直接返回
+        @Override
+        public void run() {
+            future.run();
+        }
+
+        public boolean isDone(){
+            return future.isDone();
+        }
+
+        public T getInstance(){
+            if(!future.isDone()){
+                future.run();
+            }
+            boolean interrupted = false;
+            try {
+                while (true){
+                    try {
+                        return future.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("单例" + name + "构造失败", e.getCause());
+            } finally {
+                if(interrupted){
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    //预热式单例总统对象：构造工作登记到预热协调器，由后台线程提前完成
+    static class PresidentDeferred{
+        private static final WarmUpTask<PresidentDeferred> instance = SingletonWarmUp.register("PresidentDeferred",
+                new Callable<PresidentDeferred>() {
+                    @Override
+                    public PresidentDeferred call() {
+                        return new PresidentDeferred();
+                    }
+                });
+
+        private PresidentDeferred(){
+            System.out.println("产生一个总统！");
+        }
+
+        //只为触发类加载，让构造任务登记到预热协调器
+        static void prepare(){
+        }
+
+        public static PresidentDeferred getInstance(){
+            return instance.getInstance();
+        }
+
+        public void getName(){
+            System.out.println("我是美国总统：Trump!");
+        }
+    }
+
+    //--------------------------------我是华丽的分割线-------------------------------------------
+
+    //单例实例的创建方法
+    interface InstanceFactory<K,V>{
+        V create(K key);
+    }
+
+    //按键登记的单例注册表：每个键(租户、配置项等)只创建一个实例，可以按键选择饿汉式或懒汉式
+    static class SingletonRegistry<K,V>{
+        private final ConcurrentHashMap<K,Entry<K,V>> entries = new ConcurrentHashMap<>();
+
+        //饿汉式登记：登记时立即创建实例
+        public void registerEager(K key, InstanceFactory<K,V> factory){
+            Entry<K,V> entry = register(key, factory);
+            entry.get();
+        }
+
+        //懒汉式登记：第一次get时才创建实例
+        public void registerLazy(K key, InstanceFactory<K,V> factory){
+            register(key, factory);
+        }
+
+        private Entry<K,V> register(K key, InstanceFactory<K,V> factory){
+            Entry<K,V> entry = new Entry<>(key, factory);
+            Entry<K,V> old = entries.putIfAbsent(key, entry);
+            if(old!=null){
+                throw new IllegalStateException("键已经登记过：" + key);
+            }
+            return entry;
+        }
+
+        //读路径只有一次ConcurrentHashMap查找和一次volatile读，没有全局锁
+        public V get(K key){
+            Entry<K,V> entry = entries.get(key);
+            if(entry==null){
+                throw new IllegalArgumentException("键没有登记：" + key);
+            }
+            return entry.get();
+        }
+
+        //未登记的键按懒汉式登记后再获取
+        public V getOrRegister(K key, InstanceFactory<K,V> factory){
+            Entry<K,V> entry = entries.get(key);
+            if(entry==null){
+                Entry<K,V> created = new Entry<>(key, factory);
+                entry = entries.putIfAbsent(key, created);
+                if(entry==null){
+                    entry = created;
+                }
+            }
+            return entry.get();
+        }
+
+        public boolean isCreated(K key){
+            Entry<K,V> entry = entries.get(key);
+            return entry!=null && entry.instance!=null;
+        }
+
+        //打印每个键的创建耗时和命中次数，按创建耗时从大到小排列，方便查看冷启动慢在哪里
+        public void printStats(){
+            List<Entry<K,V>> list = new ArrayList<>(entries.values());
+            Collections.sort(list, new Comparator<Entry<K,V>>() {
+                @Override
+                public int compare(Entry<K,V> o1, Entry<K,V> o2) {
+                    return Long.compare(o2.createNanos, o1.createNanos);
+                }
+            });
+            for (Entry<K,V> entry : list) {
+                System.out.println("键:" + entry.key
+                        + " 已创建:" + (entry.instance!=null)
+                        + " 创建耗时:" + entry.createNanos / 1000 + "us"
+                        + " 命中次数:" + entry.hits.get());
+            }
+        }
+
+        //每个键一个条目，用双重检查锁保证实例只创建一次，锁只加在这个键上
+        static class Entry<K,V>{
+            private final K key;
+            private final InstanceFactory<K,V> factory;
+            private final AtomicLong hits = new AtomicLong();
+            private volatile V instance;
+            private volatile long createNanos;
+
+            Entry(K key, InstanceFactory<K,V> factory){
+                this.key = key;
+                this.factory = factory;
+            }
+
+            V get(){
+                V result = instance;
+                if(result==null){
+                    synchronized (this){
+                        result = instance;
+                        if(result==null){
+                            long begin = System.nanoTime();
+                            result = factory.create(key);
+                            createNanos = System.nanoTime() - begin;
+                            instance = result;
+                            return result;
+                        }
+                    }
+                }
+                hits.incrementAndGet();
+                return result;
+            }
+        }
+    }
 
 
 }